@@ -0,0 +1,63 @@
+package ai.datadive.api;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Upload batch size that adapts to the network with additive increase / multiplicative
+ * decrease: a full batch acknowledged within slowResponseMillis grows the size by a fixed
+ * step, and a slow response, a 413 or a timeout halves it. A size is kept per network type.
+ * Not threadsafe, only use it on logThread.
+ */
+class AdaptiveBatchSize {
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int increment;
+    private final long slowResponseMillis;
+    private final Map<String, Integer> batchSizes = new HashMap<String, Integer>();
+
+    AdaptiveBatchSize(int minBatchSize, int maxBatchSize, int increment, long slowResponseMillis) {
+        this.minBatchSize = Math.max(1, minBatchSize);
+        this.maxBatchSize = Math.max(this.minBatchSize, maxBatchSize);
+        this.increment = Math.max(1, increment);
+        this.slowResponseMillis = slowResponseMillis;
+    }
+
+    boolean hasBatchSize(String networkType) {
+        return batchSizes.containsKey(networkType);
+    }
+
+    int getBatchSize(String networkType) {
+        Integer batchSize = batchSizes.get(networkType);
+        return batchSize == null ? minBatchSize : batchSize;
+    }
+
+    void setBatchSize(String networkType, long batchSize) {
+        batchSizes.put(networkType, (int) Math.max(minBatchSize, Math.min(maxBatchSize, batchSize)));
+    }
+
+    /**
+     * @return whether the batch size changed
+     */
+    boolean onSuccess(String networkType, int eventsSent, long latencyMillis) {
+        int batchSize = getBatchSize(networkType);
+        if (latencyMillis > slowResponseMillis) {
+            return onFailure(networkType);
+        }
+        if (eventsSent < batchSize || batchSize >= maxBatchSize) {
+            // a partial batch says nothing about whether a larger one would be fast
+            return false;
+        }
+        setBatchSize(networkType, batchSize + increment);
+        return true;
+    }
+
+    /**
+     * @return whether the batch size changed
+     */
+    boolean onFailure(String networkType) {
+        int batchSize = getBatchSize(networkType);
+        setBatchSize(networkType, batchSize / 2);
+        return getBatchSize(networkType) != batchSize;
+    }
+}
@@ -0,0 +1,50 @@
+package ai.datadive.api;
+
+import java.io.IOException;
+import java.util.List;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * Upload request body carrying the JSON upload payloads of several instances as one JSON
+ * array. Each payload keeps its own API key and checksum. The length is the sum of the
+ * payload lengths, so the request is sent with a Content-Length header.
+ */
+class CoalescedUploadBody extends RequestBody {
+    private static final MediaType CONTENT_TYPE = MediaType.get("application/json; charset=utf-8");
+
+    private final List<EventUploadBody> payloads;
+
+    CoalescedUploadBody(List<EventUploadBody> payloads) {
+        this.payloads = payloads;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        // the brackets and the commas between the payloads
+        long length = 2 + Math.max(0, payloads.size() - 1);
+        for (EventUploadBody payload : payloads) {
+            length += payload.contentLength();
+        }
+        return length;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.writeByte('[');
+        for (int i = 0; i < payloads.size(); i++) {
+            if (i > 0) {
+                sink.writeByte(',');
+            }
+            payloads.get(i).writeTo(sink);
+        }
+        sink.writeByte(']');
+    }
+}
@@ -12,15 +12,25 @@ import java.net.URL;
 
 public class ConfigManager {
     private static String KEY_INGESTION_ENDPOINT = "ingestionEndpoint";
+    private static String KEY_FLUSH_JITTER_WINDOW_MILLIS = "flushJitterWindowMillis";
 
     private static ConfigManager instance = null;
 
     private String ingestionEndpoint = Constants.EVENT_LOG_URL;
+    private long flushJitterWindowMillis = -1;
 
     public String getIngestionEndpoint() {
         return ingestionEndpoint;
     }
 
+    /**
+     * Window the server wants periodic uploads spread over, or -1 if the last config it sent
+     * did not say.
+     */
+    public long getFlushJitterWindowMillis() {
+        return flushJitterWindowMillis;
+    }
+
     private ConfigManager() {
     }
 
@@ -45,6 +55,8 @@ public class ConfigManager {
                 if (json.has(KEY_INGESTION_ENDPOINT)) {
                     this.ingestionEndpoint = "https://" + json.getString(KEY_INGESTION_ENDPOINT);
                 }
+                this.flushJitterWindowMillis = json.has(KEY_FLUSH_JITTER_WINDOW_MILLIS)
+                        ? Math.max(0, json.getLong(KEY_FLUSH_JITTER_WINDOW_MILLIS)) : -1;
             }
         } catch (MalformedURLException e) {
 
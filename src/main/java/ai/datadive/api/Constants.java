@@ -16,9 +16,11 @@ public class Constants {
     public static final String PACKAGE_NAME = "ai.datadive.api";
 
     public static final int API_VERSION = 2;
+    // upload payloads with the fields shared by all events hoisted into a common object
+    public static final int ENVELOPE_API_VERSION = 3;
 
     public static final String DATABASE_NAME = PACKAGE_NAME;
-    public static final int DATABASE_VERSION = 3;
+    public static final int DATABASE_VERSION = 4;
 
     public static final String DEFAULT_INSTANCE = "$default_instance";
 
@@ -29,9 +31,22 @@ public class Constants {
     public static final long EVENT_UPLOAD_PERIOD_MILLIS = 30 * 1000; // 30s
     public static final long MIN_TIME_BETWEEN_SESSIONS_MILLIS = 5 * 60 * 1000; // 5m
     public static final long SESSION_TIMEOUT_MILLIS = 30 * 60 * 1000; // 30m
+    public static final long DATABASE_IDLE_TIMEOUT_MILLIS = 60 * 1000; // 1m
+    public static final long METADATA_PERSIST_PERIOD_MILLIS = 5 * 1000; // 5s
+    public static final long DATABASE_INCREMENTAL_VACUUM_THRESHOLD = 1000;
+    public static final int ADAPTIVE_BATCH_SIZE_INCREMENT = 10;
+    public static final long UPLOAD_RETRY_AFTER_MAX_MILLIS = 24 * 60 * 60 * 1000; // 1d
+    public static final long RADIO_ACTIVE_WINDOW_MILLIS = 10 * 1000; // 10s
+    public static final long LOCATION_SNAPSHOT_TTL_MILLIS = 60 * 1000; // 1m
     public static final int MAX_STRING_LENGTH = 1024;
     public static final int MAX_PROPERTY_KEYS = 1000;
 
+    public static final String NETWORK_TYPE_WIFI = "wifi";
+    public static final String NETWORK_TYPE_CELLULAR = "cellular";
+    public static final String NETWORK_TYPE_OTHER = "other";
+    public static final String NETWORK_TYPE_NONE = "none";
+    public static final String NETWORK_TYPE_UNKNOWN = "unknown";
+
     public static final String SHARED_PREFERENCES_NAME_PREFIX = PACKAGE_NAME;
     public static final String PREFKEY_LAST_EVENT_ID = PACKAGE_NAME + ".lastEventId";
     public static final String PREFKEY_LAST_EVENT_TIME = PACKAGE_NAME + ".lastEventTime";
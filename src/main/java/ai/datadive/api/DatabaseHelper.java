@@ -3,11 +3,13 @@ package ai.datadive.api;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -32,6 +34,8 @@ class DatabaseHelper extends SQLiteOpenHelper {
     protected static final String IDENTIFY_TABLE_NAME = "identifys";
     private static final String ID_FIELD = "id";
     private static final String EVENT_FIELD = "event";
+    private static final String SEQUENCE_NUMBER_FIELD = "sequence_number";
+    private static final String BYTE_SIZE_FIELD = "byte_size";
 
     private static final String CREATE_STORE_TABLE = "CREATE TABLE IF NOT EXISTS "
             + STORE_TABLE_NAME + " (" + KEY_FIELD + " TEXT PRIMARY KEY NOT NULL, "
@@ -41,16 +45,34 @@ class DatabaseHelper extends SQLiteOpenHelper {
             + VALUE_FIELD + " INTEGER);";
     private static final String CREATE_EVENTS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + EVENT_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + SEQUENCE_NUMBER_FIELD + " INTEGER NOT NULL DEFAULT 0, "
+            + BYTE_SIZE_FIELD + " INTEGER NOT NULL DEFAULT 0);";
     private static final String CREATE_IDENTIFYS_TABLE = "CREATE TABLE IF NOT EXISTS "
             + IDENTIFY_TABLE_NAME + " (" + ID_FIELD + " INTEGER PRIMARY KEY AUTOINCREMENT, "
-            + EVENT_FIELD + " TEXT);";
+            + EVENT_FIELD + " TEXT, " + SEQUENCE_NUMBER_FIELD + " INTEGER NOT NULL DEFAULT 0, "
+            + BYTE_SIZE_FIELD + " INTEGER NOT NULL DEFAULT 0);";
 
     File file;
     private String instanceName;
     private boolean callResetListenerOnDatabaseReset = true;
     private DatabaseResetListener databaseResetListener;
 
+    // when true, the connection is kept open between operations and only released by
+    // closeIfIdle() or an explicit close(), instead of after every read and write
+    private boolean keepDatabaseOpen = false;
+    private long lastDatabaseAccessMillis = 0;
+
+    // row counts of the events and identifys tables, seeded with a COUNT(*) the first time they
+    // are needed and then maintained by every insert and delete, -1 means unknown. Counts belong
+    // to the database file, so helpers opened on the same file share them. The entry is dropped
+    // when the file is deleted and put back when it is created again.
+    private static final Map<String, long[]> rowCountsByFile = new HashMap<String, long[]>();
+    private final long[] rowCounts;
+
+    private DatabaseOptions databaseOptions;
+    private boolean autoVacuumModeChecked = false;
+    private long rowsDeletedSinceVacuum = 0;
+
     private static final DatadiveLog logger = DatadiveLog.getLogger();
 
     @Deprecated
@@ -80,14 +102,107 @@ class DatabaseHelper extends SQLiteOpenHelper {
         super(context, getDatabaseName(instance), null, Constants.DATABASE_VERSION);
         file = context.getDatabasePath(getDatabaseName(instance));
         instanceName = Utils.normalizeInstanceName(instance);
+        synchronized (rowCountsByFile) {
+            long[] counts = rowCountsByFile.get(file.getPath());
+            if (counts == null) {
+                counts = new long[]{-1, -1};
+                rowCountsByFile.put(file.getPath(), counts);
+            }
+            rowCounts = counts;
+        }
     }
 
     void setDatabaseResetListener(DatabaseResetListener databaseResetListener) {
         this.databaseResetListener = databaseResetListener;
     }
 
+    synchronized void setKeepDatabaseOpen(boolean keepDatabaseOpen) {
+        this.keepDatabaseOpen = keepDatabaseOpen;
+        if (!keepDatabaseOpen) {
+            close();
+        }
+    }
+
+    /**
+     * Closes the long-lived connection if it has not been used for at least idleTimeoutMillis.
+     *
+     * @return true if there is no longer an open connection, false if the connection is still
+     * in use and the caller should check again later
+     */
+    synchronized boolean closeIfIdle(long idleTimeoutMillis) {
+        if (SystemClock.uptimeMillis() - lastDatabaseAccessMillis < idleTimeoutMillis) {
+            return false;
+        }
+        close();
+        return true;
+    }
+
+    // pragmas are applied whenever a connection is opened, so drop the current one
+    synchronized void setDatabaseOptions(DatabaseOptions databaseOptions) {
+        this.databaseOptions = databaseOptions;
+        autoVacuumModeChecked = false;
+        close();
+    }
+
+    // Called at the end of every operation in place of close(). In the default mode the
+    // database file is closed after each interaction, otherwise only the access time is
+    // recorded so that closeIfIdle() can release the connection once logging goes quiet.
+    private void releaseDatabase() {
+        lastDatabaseAccessMillis = SystemClock.uptimeMillis();
+        if (!keepDatabaseOpen) {
+            close();
+        }
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        if (databaseOptions == null) {
+            return;
+        }
+
+        // page_size and auto_vacuum only take effect before the first table is created
+        if (databaseOptions.pageSize > 0) {
+            db.execSQL("PRAGMA page_size = " + databaseOptions.pageSize);
+        }
+        if (databaseOptions.incrementalVacuum) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+        // enabling WAL resets the sync mode, so it has to come before synchronous
+        if (databaseOptions.writeAheadLogging) {
+            db.enableWriteAheadLogging();
+        }
+        if (databaseOptions.synchronous != null) {
+            db.execSQL("PRAGMA synchronous = " + databaseOptions.synchronous);
+        }
+        if (databaseOptions.cacheSize != 0) {
+            db.execSQL("PRAGMA cache_size = " + databaseOptions.cacheSize);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        if (databaseOptions == null || !databaseOptions.incrementalVacuum || autoVacuumModeChecked) {
+            return;
+        }
+
+        autoVacuumModeChecked = true;
+        try {
+            // an existing file only switches auto_vacuum mode after a full VACUUM
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null) != 2) {
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "Failed to enable incremental auto vacuum", e);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
+        invalidateRowCounts();
+        synchronized (rowCountsByFile) {
+            rowCountsByFile.put(file.getPath(), rowCounts);
+        }
         db.execSQL(CREATE_STORE_TABLE);
         db.execSQL(CREATE_LONG_STORE_TABLE);
         // INTEGER PRIMARY KEY AUTOINCREMENT guarantees that all generated values
@@ -95,6 +210,8 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // lifetime of the table, even if rows get removed
         db.execSQL(CREATE_EVENTS_TABLE);
         db.execSQL(CREATE_IDENTIFYS_TABLE);
+        db.execSQL(createSequenceNumberIndex(EVENT_TABLE_NAME));
+        db.execSQL(createSequenceNumberIndex(IDENTIFY_TABLE_NAME));
 
         // NOTE: the database file can become corrupted between interactions
         // getWriteableDatabase and getReadableDatabase will test for corruption
@@ -115,6 +232,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        invalidateRowCounts();
         if (oldVersion > newVersion) {
             logger.e(TAG, "onUpgrade() with invalid oldVersion and newVersion");
             resetDatabase(db);
@@ -136,6 +254,11 @@ class DatabaseHelper extends SQLiteOpenHelper {
                 if (newVersion <= 3) break;
 
             case 3:
+                upgradeEventTableToVersion4(db, EVENT_TABLE_NAME);
+                upgradeEventTableToVersion4(db, IDENTIFY_TABLE_NAME);
+                if (newVersion <= 4) break;
+
+            case 4:
                 break;
 
             default:
@@ -144,6 +267,63 @@ class DatabaseHelper extends SQLiteOpenHelper {
         }
     }
 
+    // both queues are read in one ordered scan by sequence number, see getEventsAndIdentifys
+    private static String createSequenceNumberIndex(String table) {
+        return "CREATE INDEX IF NOT EXISTS " + table + "_" + SEQUENCE_NUMBER_FIELD + "_index ON "
+                + table + " (" + SEQUENCE_NUMBER_FIELD + ", " + ID_FIELD + ");";
+    }
+
+    // adds the sequence_number and byte_size columns and fills them in for rows already queued
+    private void upgradeEventTableToVersion4(SQLiteDatabase db, String table) {
+        boolean hasSequenceNumber = false;
+        boolean hasByteSize = false;
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameIndex = cursor.getColumnIndex("name");
+            while (cursor.moveToNext()) {
+                String column = cursor.getString(nameIndex);
+                hasSequenceNumber |= SEQUENCE_NUMBER_FIELD.equals(column);
+                hasByteSize |= BYTE_SIZE_FIELD.equals(column);
+            }
+        } finally {
+            cursor.close();
+        }
+        if (!hasSequenceNumber) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + SEQUENCE_NUMBER_FIELD
+                    + " INTEGER NOT NULL DEFAULT 0;");
+        }
+        if (!hasByteSize) {
+            db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + BYTE_SIZE_FIELD
+                    + " INTEGER NOT NULL DEFAULT 0;");
+        }
+
+        cursor = db.query(table, new String[]{ID_FIELD, EVENT_FIELD}, null, null, null, null, null);
+        try {
+            ContentValues contentValues = new ContentValues();
+            while (cursor.moveToNext()) {
+                String event = cursor.getString(1);
+                contentValues.put(SEQUENCE_NUMBER_FIELD, getSequenceNumber(event));
+                contentValues.put(BYTE_SIZE_FIELD, Utils.utf8Length(event));
+                db.update(table, contentValues, ID_FIELD + " = " + cursor.getLong(0), null);
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL(createSequenceNumberIndex(table));
+    }
+
+    // events logged before v2.1.0 have no sequence number, they sort first
+    private static long getSequenceNumber(String event) {
+        if (Utils.isEmptyString(event)) {
+            return 0;
+        }
+        try {
+            return new JSONObject(event).optLong(SEQUENCE_NUMBER_FIELD, 0);
+        } catch (JSONException e) {
+            return 0;
+        }
+    }
+
     private void resetDatabase(SQLiteDatabase db) {
         db.execSQL("DROP TABLE IF EXISTS " + STORE_TABLE_NAME);
         db.execSQL("DROP TABLE IF EXISTS " + LONG_STORE_TABLE_NAME);
@@ -162,6 +342,43 @@ class DatabaseHelper extends SQLiteOpenHelper {
             insertOrReplaceKeyValueToTable(LONG_STORE_TABLE_NAME, key, value);
     }
 
+    // writes all values inside a single transaction, returns the number of values written
+    synchronized long insertOrReplaceKeyLongValues(Map<String, Long> values) {
+        long result = 0;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, Long> entry : values.entrySet()) {
+                    if (entry.getValue() == null) {
+                        db.delete(LONG_STORE_TABLE_NAME, KEY_FIELD + "=?",
+                                new String[]{entry.getKey()});
+                    } else if (insertOrReplaceKeyValueToTable(db, LONG_STORE_TABLE_NAME,
+                            entry.getKey(), entry.getValue()) == -1) {
+                        continue;
+                    }
+                    result++;
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("insertOrReplaceKeyValues in %s failed", LONG_STORE_TABLE_NAME), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            result = -1;
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("insertOrReplaceKeyValues in %s failed", LONG_STORE_TABLE_NAME), e);
+            // potential stack overflow error when getting database on custom Android versions
+            result = -1;
+            delete();
+        } finally {
+            releaseDatabase();
+        }
+        return result;
+    }
+
     synchronized long insertOrReplaceKeyValueToTable(String table, String key, Object value) {
         long result = -1;
         SQLiteDatabase db = null;
@@ -178,7 +395,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             delete();
         } finally {
             if (db != null && db.isOpen()) {
-                close();
+                releaseDatabase();
             }
         }
         return result;
@@ -223,28 +440,40 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
-            close();
+            releaseDatabase();
         }
         return result;
     }
 
     synchronized long addEvent(String event) {
-        return addEventToTable(EVENT_TABLE_NAME, event);
+        return addEventToTable(EVENT_TABLE_NAME, event, getSequenceNumber(event));
+    }
+
+    synchronized long addEvent(String event, long sequenceNumber) {
+        return addEventToTable(EVENT_TABLE_NAME, event, sequenceNumber);
     }
 
     synchronized long addIdentify(String identifyEvent) {
-        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent);
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, getSequenceNumber(identifyEvent));
     }
 
-    private synchronized long addEventToTable(String table, String event) {
+    synchronized long addIdentify(String identifyEvent, long sequenceNumber) {
+        return addEventToTable(IDENTIFY_TABLE_NAME, identifyEvent, sequenceNumber);
+    }
+
+    private synchronized long addEventToTable(String table, String event, long sequenceNumber) {
         long result = -1;
         try {
             SQLiteDatabase db = getWritableDatabase();
             ContentValues contentValues = new ContentValues();
             contentValues.put(EVENT_FIELD, event);
+            contentValues.put(SEQUENCE_NUMBER_FIELD, sequenceNumber);
+            contentValues.put(BYTE_SIZE_FIELD, Utils.utf8Length(event));
             result = insertEventContentValuesIntoTable(db, table, contentValues);
             if (result == -1) {
                 logger.w(TAG, String.format("Insert into %s failed", table));
+            } else {
+                adjustRowCount(table, 1);
             }
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("addEvent to %s failed", table), e);
@@ -255,7 +484,60 @@ class DatabaseHelper extends SQLiteOpenHelper {
             // potential stack overflow error when getting database on custom Android versions
             delete();
         } finally {
-            close();
+            releaseDatabase();
+        }
+        return result;
+    }
+
+    synchronized long addEvents(List<String> events, List<Long> sequenceNumbers) {
+        return addEventsToTable(EVENT_TABLE_NAME, events, sequenceNumbers);
+    }
+
+    synchronized long addIdentifys(List<String> identifyEvents, List<Long> sequenceNumbers) {
+        return addEventsToTable(IDENTIFY_TABLE_NAME, identifyEvents, sequenceNumbers);
+    }
+
+    // inserts all rows inside a single transaction so the batch costs one journal commit
+    // instead of one per row, returns the id of the last row inserted
+    private synchronized long addEventsToTable(String table, List<String> events,
+                                               List<Long> sequenceNumbers) {
+        long result = -1;
+        try {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                ContentValues contentValues = new ContentValues();
+                int numRowsInserted = 0;
+                for (int i = 0; i < events.size(); i++) {
+                    String event = events.get(i);
+                    contentValues.put(EVENT_FIELD, event);
+                    contentValues.put(SEQUENCE_NUMBER_FIELD, sequenceNumbers.get(i));
+                    contentValues.put(BYTE_SIZE_FIELD, Utils.utf8Length(event));
+                    long id = insertEventContentValuesIntoTable(db, table, contentValues);
+                    if (id == -1) {
+                        logger.w(TAG, String.format("Insert into %s failed", table));
+                    } else {
+                        result = id;
+                        numRowsInserted++;
+                    }
+                }
+                db.setTransactionSuccessful();
+                adjustRowCount(table, numRowsInserted);
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("addEvents to %s failed", table), e);
+            // Hard to recover from SQLiteExceptions, just start fresh
+            result = -1;
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("addEvents to %s failed", table), e);
+            // potential stack overflow error when getting database on custom Android versions
+            result = -1;
+            delete();
+        } finally {
+            releaseDatabase();
         }
         return result;
     }
@@ -302,7 +584,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseDatabase();
         }
         return value;
     }
@@ -353,11 +635,145 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (cursor != null) {
                 cursor.close();
             }
-            close();
+            releaseDatabase();
         }
         return events;
     }
 
+    /**
+     * Reads the oldest queued events and identifys, interleaved by sequence number, in one
+     * ordered scan over both tables. The stored strings are returned as is, without parsing.
+     */
+    synchronized EventBatch getEventsAndIdentifys(long upToEventId, long upToIdentifyId,
+                                                  long limit) {
+        return getEventsAndIdentifys(-1, -1, upToEventId, upToIdentifyId, limit, -1);
+    }
+
+    /**
+     * Like {@link #getEventsAndIdentifys(long, long, long)}, but only reads rows after the
+     * given ids, so batches read one after the other cover disjoint id ranges, and stops
+     * before the serialized batch would exceed maxBytes. The sizes come from the byte_size
+     * column, so nothing is serialized to measure it. The first event is always included,
+     * even if it is larger than maxBytes on its own.
+     */
+    synchronized EventBatch getEventsAndIdentifys(long afterEventId, long afterIdentifyId,
+                                                  long upToEventId, long upToIdentifyId,
+                                                  long limit, long maxBytes) {
+        EventBatch batch = new EventBatch();
+        batch.afterEventId = afterEventId;
+        batch.afterIdentifyId = afterIdentifyId;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            String query = "SELECT 0 AS kind, " + ID_FIELD + ", " + EVENT_FIELD + ", "
+                    + SEQUENCE_NUMBER_FIELD + ", " + BYTE_SIZE_FIELD + " FROM " + EVENT_TABLE_NAME
+                    + getIdRangeClause(afterEventId, upToEventId)
+                    + " UNION ALL SELECT 1 AS kind, " + ID_FIELD + ", " + EVENT_FIELD + ", "
+                    + SEQUENCE_NUMBER_FIELD + ", " + BYTE_SIZE_FIELD + " FROM " + IDENTIFY_TABLE_NAME
+                    + getIdRangeClause(afterIdentifyId, upToIdentifyId)
+                    + " ORDER BY " + SEQUENCE_NUMBER_FIELD + ", " + ID_FIELD
+                    + (limit >= 0 ? " LIMIT " + limit : "");
+            cursor = rawQueryDb(db, query, null);
+
+            while (cursor.moveToNext()) {
+                boolean isIdentify = cursor.getInt(0) == 1;
+                long eventId = cursor.getLong(1);
+                if (maxBytes > 0 && !batch.isEmpty() && batch.byteSize
+                        + EventBatch.getSerializedSize(cursor.getLong(4), eventId) > maxBytes) {
+                    break;
+                }
+                if (isIdentify) {
+                    batch.maxIdentifyId = eventId;
+                } else {
+                    batch.maxEventId = eventId;
+                }
+                String event = cursor.getString(2);
+                if (Utils.isEmptyString(event)) {
+                    continue;
+                }
+                if (!EventBatch.isObject(event)) {
+                    // still covered by the max ids, so it is removed with the batch
+                    logger.w(TAG, String.format("Skipping malformed event %d", eventId));
+                    continue;
+                }
+
+                long eventBytes = cursor.getLong(4);
+                batch.add(event, eventId, eventBytes > 0 ? eventBytes : Utils.utf8Length(event));
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "getEventsAndIdentifys failed", e);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, "getEventsAndIdentifys failed", e);
+            delete();
+        } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
+            handleIfCursorRowTooLargeException(e);
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseDatabase();
+        }
+        return batch;
+    }
+
+    private static String getIdRangeClause(long afterId, long upToId) {
+        if (afterId >= 0 && upToId >= 0) {
+            return " WHERE " + ID_FIELD + " > " + afterId + " AND " + ID_FIELD + " <= " + upToId;
+        } else if (afterId >= 0) {
+            return " WHERE " + ID_FIELD + " > " + afterId;
+        } else if (upToId >= 0) {
+            return " WHERE " + ID_FIELD + " <= " + upToId;
+        }
+        return "";
+    }
+
+    synchronized JSONObject getLastEvent() throws JSONException {
+        return getLastEventFromTable(EVENT_TABLE_NAME);
+    }
+
+    synchronized JSONObject getLastIdentify() throws JSONException {
+        return getLastEventFromTable(IDENTIFY_TABLE_NAME);
+    }
+
+    // returns the most recently inserted row, or null if the table is empty
+    private synchronized JSONObject getLastEventFromTable(String table) throws JSONException {
+        JSONObject lastEvent = null;
+        Cursor cursor = null;
+        try {
+            SQLiteDatabase db = getReadableDatabase();
+            cursor = queryDb(
+                db, table, new String[] { ID_FIELD, EVENT_FIELD }, null, null, null, null,
+                ID_FIELD + " DESC", "1"
+            );
+
+            if (cursor.moveToFirst()) {
+                long eventId = cursor.getLong(0);
+                String event = cursor.getString(1);
+                lastEvent = Utils.isEmptyString(event) ? new JSONObject() : new JSONObject(event);
+                lastEvent.put("event_id", eventId);
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, String.format("getLastEvent from %s failed", table), e);
+            delete();
+        } catch (StackOverflowError e) {
+            logger.e(TAG, String.format("getLastEvent from %s failed", table), e);
+            delete();
+        } catch (IllegalStateException e) {  // put before Runtime since IllegalState extends
+            handleIfCursorRowTooLargeException(e);
+        } catch (RuntimeException e) {
+            convertIfCursorWindowException(e);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            releaseDatabase();
+        }
+        return lastEvent;
+    }
+
     synchronized long getEventCount() {
         return getEventCountFromTable(EVENT_TABLE_NAME);
     }
@@ -371,13 +787,19 @@ class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     private synchronized long getEventCountFromTable(String table) {
-        long numberRows = 0;
+        long numberRows = getRowCount(table);
+        if (numberRows >= 0) {
+            return numberRows;
+        }
+
+        numberRows = 0;
         SQLiteStatement statement = null;
         try {
             SQLiteDatabase db = getReadableDatabase();
             String query = "SELECT COUNT(*) FROM " + table;
             statement = db.compileStatement(query);
             numberRows = statement.simpleQueryForLong();
+            setRowCount(table, numberRows);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("getNumberRows for %s failed", table), e);
             // Hard to recover from SQLiteExceptions, just start fresh
@@ -390,7 +812,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            releaseDatabase();
         }
         return numberRows;
     }
@@ -429,23 +851,41 @@ class DatabaseHelper extends SQLiteOpenHelper {
             if (statement != null) {
                 statement.close();
             }
-            close();
+            releaseDatabase();
         }
         return nthEventId;
     }
 
     synchronized void removeEvents(long maxId) {
-        removeEventsFromTable(EVENT_TABLE_NAME, maxId);
+        removeEventsFromTable(EVENT_TABLE_NAME, -1, maxId);
     }
 
     synchronized void removeIdentifys(long maxId) {
-        removeEventsFromTable(IDENTIFY_TABLE_NAME, maxId);
+        removeEventsFromTable(IDENTIFY_TABLE_NAME, -1, maxId);
+    }
+
+    /**
+     * Removes the events with ids after afterId and up to maxId, the id range of one upload
+     * batch.
+     */
+    synchronized void removeEvents(long afterId, long maxId) {
+        removeEventsFromTable(EVENT_TABLE_NAME, afterId, maxId);
+    }
+
+    synchronized void removeIdentifys(long afterId, long maxId) {
+        removeEventsFromTable(IDENTIFY_TABLE_NAME, afterId, maxId);
     }
 
-    private synchronized void removeEventsFromTable(String table, long maxId) {
+    private synchronized void removeEventsFromTable(String table, long afterId, long maxId) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " <= " + maxId, null);
+            String where = ID_FIELD + " <= " + maxId;
+            if (afterId >= 0) {
+                where = ID_FIELD + " > " + afterId + " AND " + where;
+            }
+            int numRowsDeleted = db.delete(table, where, null);
+            adjustRowCount(table, -numRowsDeleted);
+            vacuumIfNeeded(db, numRowsDeleted);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
             delete();
@@ -453,7 +893,7 @@ class DatabaseHelper extends SQLiteOpenHelper {
             logger.e(TAG, String.format("removeEvents from %s failed", table), e);
             delete();
         } finally {
-            close();
+            releaseDatabase();
         }
     }
 
@@ -468,7 +908,9 @@ class DatabaseHelper extends SQLiteOpenHelper {
     private synchronized void removeEventFromTable(String table, long id) {
         try {
             SQLiteDatabase db = getWritableDatabase();
-            db.delete(table, ID_FIELD + " = " + id, null);
+            int numRowsDeleted = db.delete(table, ID_FIELD + " = " + id, null);
+            adjustRowCount(table, -numRowsDeleted);
+            vacuumIfNeeded(db, numRowsDeleted);
         } catch (SQLiteException e) {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
             delete();
@@ -476,7 +918,83 @@ class DatabaseHelper extends SQLiteOpenHelper {
             logger.e(TAG, String.format("removeEvent from %s failed", table), e);
             delete();
         } finally {
-            close();
+            releaseDatabase();
+        }
+    }
+
+    private void vacuumIfNeeded(SQLiteDatabase db, long numRowsDeleted) {
+        if (databaseOptions == null || !databaseOptions.incrementalVacuum) {
+            return;
+        }
+        rowsDeletedSinceVacuum += numRowsDeleted;
+        if (rowsDeletedSinceVacuum < databaseOptions.incrementalVacuumThreshold) {
+            return;
+        }
+
+        rowsDeletedSinceVacuum = 0;
+        // a failed vacuum only leaves free pages in the file, so it must not reach the callers'
+        // catch blocks, which delete the database
+        try {
+            // the pragma frees pages as it is stepped, so run it to completion through a cursor
+            Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum", null);
+            try {
+                while (cursor.moveToNext()) {
+                    // keep stepping
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            logger.e(TAG, "incremental_vacuum failed", e);
+        }
+    }
+
+    private static int getRowCountIndex(String table) {
+        if (EVENT_TABLE_NAME.equals(table)) {
+            return 0;
+        } else if (IDENTIFY_TABLE_NAME.equals(table)) {
+            return 1;
+        }
+        return -1;
+    }
+
+    private long getRowCount(String table) {
+        int index = getRowCountIndex(table);
+        if (index < 0) {
+            return -1;
+        }
+        synchronized (rowCounts) {
+            return rowCounts[index];
+        }
+    }
+
+    private void setRowCount(String table, long count) {
+        int index = getRowCountIndex(table);
+        if (index < 0) {
+            return;
+        }
+        synchronized (rowCounts) {
+            rowCounts[index] = count;
+        }
+    }
+
+    // only adjusts a count that is already known, an unknown count is seeded by the next read
+    private void adjustRowCount(String table, long delta) {
+        int index = getRowCountIndex(table);
+        if (index < 0) {
+            return;
+        }
+        synchronized (rowCounts) {
+            if (rowCounts[index] >= 0) {
+                rowCounts[index] = Math.max(0, rowCounts[index] + delta);
+            }
+        }
+    }
+
+    private void invalidateRowCounts() {
+        synchronized (rowCounts) {
+            rowCounts[0] = -1;
+            rowCounts[1] = -1;
         }
     }
 
@@ -484,9 +1002,14 @@ class DatabaseHelper extends SQLiteOpenHelper {
         // This only gets called if the database somehow gets corrupted AFTER being fetched
         // ie after the call to getWriteableDatabase / getReadableDatabase
         // or if a SQL exception occurs during the interaction
+        invalidateRowCounts();
+        synchronized (rowCountsByFile) {
+            rowCountsByFile.remove(file.getPath());
+        }
         try {
             close();
-            file.delete();
+            // also removes the -journal, -wal and -shm files
+            SQLiteDatabase.deleteDatabase(file);
         } catch (SecurityException e) {
             logger.e(TAG, "delete failed", e);
         } finally {
@@ -521,6 +1044,10 @@ class DatabaseHelper extends SQLiteOpenHelper {
         return db.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
     }
 
+    Cursor rawQueryDb(SQLiteDatabase db, String sql, String[] selectionArgs) {
+        return db.rawQuery(sql, selectionArgs);
+    }
+
     /*
         Checks if the IllegalStateException is caused by CursorWindow row too big exception
         If it is, then we want to reset the database to clear the bad data
@@ -0,0 +1,82 @@
+package ai.datadive.api;
+
+/**
+ * SQLite tuning for the event database. All options are off by default, which keeps the
+ * platform defaults (rollback journal, synchronous=FULL, no auto vacuum).
+ */
+public class DatabaseOptions {
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    boolean writeAheadLogging = false;
+    String synchronous = null;
+    int pageSize = 0;
+    int cacheSize = 0;
+    boolean incrementalVacuum = false;
+    long incrementalVacuumThreshold = Constants.DATABASE_INCREMENTAL_VACUUM_THRESHOLD;
+
+    /**
+     * Use write-ahead logging, so uploads can read the event tables while new events are
+     * written, and commits append to the log instead of rewriting a rollback journal.
+     *
+     * @return the DatabaseOptions
+     */
+    public DatabaseOptions enableWriteAheadLogging() {
+        writeAheadLogging = true;
+        return this;
+    }
+
+    /**
+     * Set PRAGMA synchronous. {@link #SYNCHRONOUS_NORMAL} is durable across app crashes when
+     * write-ahead logging is enabled and only risks the last commits on power loss.
+     *
+     * @param synchronous one of SYNCHRONOUS_OFF, SYNCHRONOUS_NORMAL or SYNCHRONOUS_FULL
+     * @return the DatabaseOptions
+     */
+    public DatabaseOptions setSynchronous(String synchronous) {
+        if (SYNCHRONOUS_OFF.equals(synchronous) || SYNCHRONOUS_NORMAL.equals(synchronous) ||
+                SYNCHRONOUS_FULL.equals(synchronous)) {
+            this.synchronous = synchronous;
+        }
+        return this;
+    }
+
+    /**
+     * Set PRAGMA page_size. Only applies to database files created afterwards.
+     *
+     * @param pageSize the page size in bytes, a power of two between 512 and 65536
+     * @return the DatabaseOptions
+     */
+    public DatabaseOptions setPageSize(int pageSize) {
+        if (pageSize >= 512 && pageSize <= 65536 && (pageSize & (pageSize - 1)) == 0) {
+            this.pageSize = pageSize;
+        }
+        return this;
+    }
+
+    /**
+     * Set PRAGMA cache_size for each connection.
+     *
+     * @param cacheSize number of pages, or the cache size in KiB if negative
+     * @return the DatabaseOptions
+     */
+    public DatabaseOptions setCacheSize(int cacheSize) {
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    /**
+     * Set auto_vacuum=INCREMENTAL and give free pages back to the file system once
+     * deletedRowsThreshold event rows have been removed since the last vacuum. An existing
+     * database file is vacuumed once to switch its auto_vacuum mode.
+     *
+     * @param deletedRowsThreshold number of deleted rows between incremental vacuums
+     * @return the DatabaseOptions
+     */
+    public DatabaseOptions enableIncrementalVacuum(long deletedRowsThreshold) {
+        incrementalVacuum = true;
+        incrementalVacuumThreshold = Math.max(1, deletedRowsThreshold);
+        return this;
+    }
+}
@@ -47,6 +47,17 @@ public class Datadive {
         return client;
     }
 
+    /**
+     * Tell the SDK that the app just used the network, so the cellular radio is awake. Uploads
+     * that instances with radio aware uploads enabled have been holding back are sent now,
+     * riding on the same radio wake-up instead of causing their own.
+     *
+     * @see DatadiveClient#enableRadioAwareUploads(long)
+     */
+    public static void notifyNetworkActivity() {
+        RadioActivity.notifyActive();
+    }
+
     /**
      * Initialize the SDK with the Android app context and Datadive API key.
      * Initializing is required before calling other methods such as {@code logEvent();}.
@@ -2,9 +2,11 @@ package ai.datadive.api;
 
 import android.app.Activity;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
 import android.os.Bundle;
 
-class DatadiveCallbacks implements Application.ActivityLifecycleCallbacks {
+class DatadiveCallbacks implements Application.ActivityLifecycleCallbacks, ComponentCallbacks2 {
 
     private static final String TAG = DatadiveCallbacks.class.getName();
     private static final String NULLMSG = "Need to initialize DatadiveCallbacks with DatadiveClient instance";
@@ -57,6 +59,24 @@ class DatadiveCallbacks implements Application.ActivityLifecycleCallbacks {
     @Override
     public void onActivityStopped(Activity activity) {}
 
+    @Override
+    public void onTrimMemory(int level) {
+        if (clientInstance == null) {
+            logger.e(TAG, NULLMSG);
+            return;
+        }
+
+        clientInstance.onTrimMemory(level);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {}
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
     protected long getCurrentTimeMillis() {
         return System.currentTimeMillis();
     }
@@ -1,32 +1,39 @@
 package ai.datadive.api;
 
 import android.app.Application;
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
 import android.location.Location;
+import android.net.ConnectivityManager;
 import android.os.Build;
-import android.util.Pair;
-
-import ai.datadive.security.MD5;
+import android.os.SystemClock;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.security.MessageDigest;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import okhttp3.FormBody;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 
 /**
@@ -85,9 +92,24 @@ public class DatadiveClient {
      * The pref/database key for the previous session ID value.
      */
     public static final String PREVIOUS_SESSION_ID_KEY = "previous_session_id";
+    /**
+     * The database key prefix for the adaptive upload batch size, followed by the network type.
+     */
+    public static final String UPLOAD_BATCH_SIZE_KEY_PREFIX = "upload_batch_size_";
+    /**
+     * The database key for the time of the next upload attempt after failed uploads.
+     */
+    public static final String NEXT_UPLOAD_ATTEMPT_TIME_KEY = "next_upload_attempt_time";
+    /**
+     * Returned by logEvent and saveEvent instead of the event ID when the event was buffered by
+     * the group commit writer, see {@link #enableGroupCommit(int, long)}.
+     */
+    public static final long EVENT_ID_DEFERRED = -2;
 
     private static final DatadiveLog logger = DatadiveLog.getLogger();
 
+    private static OkHttpClient sharedHttpClient;
+
     /**
      * The Android App Context.
      */
@@ -124,8 +146,14 @@ public class DatadiveClient {
     TrackingOptions inputTrackingOptions = new TrackingOptions();
     TrackingOptions appliedTrackingOptions = TrackingOptions.copyOf(inputTrackingOptions);
     JSONObject apiPropertiesTrackingOptions = appliedTrackingOptions.getApiPropertiesTrackingOptions();
+    /**
+     * The serialized device fields of every event, only accessed on logThread.
+     */
+    DeviceContext deviceContext;
     private boolean coppaControlEnabled = false;
     private boolean locationListening = true;
+    private long locationSnapshotTtlMillis = Constants.LOCATION_SNAPSHOT_TTL_MILLIS;
+    private AtomicBoolean locationRefreshScheduled = new AtomicBoolean(false);
 
     /**
      * The device's Platform value.
@@ -151,10 +179,23 @@ public class DatadiveClient {
     private int eventUploadMaxBatchSize = Constants.EVENT_UPLOAD_MAX_BATCH_SIZE;
     private int eventMaxCount = Constants.EVENT_MAX_COUNT;
     private long eventUploadPeriodMillis = Constants.EVENT_UPLOAD_PERIOD_MILLIS;
+    private long flushJitterWindowMillis = 0;
+    // the window from dynamic config, overrides the app's setting unless -1
+    private volatile long serverFlushJitterWindowMillis = -1;
+    private long radioAwareMaxDelayMillis = 0;
+    private long uploadCoalescingWindowMillis = 0;
+    private volatile EventRingBuffer eventRingBuffer;
+    private UploadPolicy uploadPolicy;
+    private BroadcastReceiver connectivityReceiver;
     private long minTimeBetweenSessionsMillis = Constants.MIN_TIME_BETWEEN_SESSIONS_MILLIS;
     private long sessionTimeoutMillis = Constants.SESSION_TIMEOUT_MILLIS;
     private boolean backoffUpload = false;
     private int backoffUploadBatchSize = eventUploadMaxBatchSize;
+    private long eventUploadMaxBatchBytes = 0;
+    private AdaptiveBatchSize adaptiveBatchSize;
+    private long uploadRetryBaseDelayMillis = 0;
+    private long uploadRetryMaxDelayMillis = 0;
+    private Random uploadRetryJitter = new Random();
     private boolean usingForegroundTracking = false;
     private boolean trackingSessionEvents = false;
     private boolean inForeground = false;
@@ -162,8 +203,55 @@ public class DatadiveClient {
     private String libraryName = Constants.LIBRARY;
     private String libraryVersion = Constants.VERSION;
     private boolean useDynamicConfig = false;
+    private boolean keepDatabaseOpen = false;
+    private long databaseIdleTimeoutMillis = Constants.DATABASE_IDLE_TIMEOUT_MILLIS;
+    private DatabaseOptions databaseOptions;
+    private int groupCommitMaxBatchSize = 1;
+    private long groupCommitWindowMillis = 0;
+
+    /**
+     * Events waiting to be written by the group commit writer. Only accessed on logThread.
+     */
+    private List<String> pendingEvents = new ArrayList<String>();
+    private List<Long> pendingEventSequenceNumbers = new ArrayList<Long>();
+    private List<String> pendingIdentifys = new ArrayList<String>();
+    private List<Long> pendingIdentifySequenceNumbers = new ArrayList<Long>();
+    private boolean writeBehindMetadata = false;
+    private long metadataPersistPeriodMillis = Constants.METADATA_PERSIST_PERIOD_MILLIS;
+
+    /**
+     * Event metadata changed since it was last written to the database. Only accessed on logThread.
+     */
+    private Map<String, Long> dirtyMetadata = new HashMap<String, Long>();
+    private int sequenceNumberBlockSize = 1;
+    // highest sequence number reserved in the database by the block allocator
+    private long sequenceNumberCeiling = 0;
+    boolean uploadCompression = false;
+    private boolean jsonUploadBody = false;
+    private boolean envelopeUploadBody = false;
+    private int maxConcurrentUploads = 1;
+
+    /**
+     * Batches sent to the server and not yet removed from the database, oldest first, and the
+     * highest ids read into them. Only accessed on logThread.
+     */
+    List<EventBatch> inFlightBatches = new ArrayList<EventBatch>();
+    private long uploadCursorEventId = -1;
+    private long uploadCursorIdentifyId = -1;
+    private boolean uploadFailed = false;
+    private boolean uploadRetryWithBackoff = false;
+    private long uploadRetryAfterMillis = -1;
+    private boolean uploadRetryable = false;
+    // consecutive failed uploads and when to try again, on the SystemClock.uptimeMillis() clock
+    private int uploadFailureCount = 0;
+    private long nextUploadAttemptUptime = 0;
 
     private AtomicBoolean updateScheduled = new AtomicBoolean(false);
+    private AtomicBoolean uploadRetryScheduled = new AtomicBoolean(false);
+    private AtomicBoolean radioDeadlineScheduled = new AtomicBoolean(false);
+    private AtomicBoolean databaseIdleCheckScheduled = new AtomicBoolean(false);
+    private AtomicBoolean groupCommitScheduled = new AtomicBoolean(false);
+    private AtomicBoolean metadataPersistScheduled = new AtomicBoolean(false);
     /**
      * Whether or not the SDK is in the process of uploading events.
      */
@@ -259,7 +347,16 @@ public class DatadiveClient {
         this.context = context.getApplicationContext();
         this.apiKey = apiKey;
         this.dbHelper = DatabaseHelper.getDatabaseHelper(this.context, this.instanceName);
+        if (keepDatabaseOpen) {
+            this.dbHelper.setKeepDatabaseOpen(true);
+        }
+        if (databaseOptions != null) {
+            this.dbHelper.setDatabaseOptions(databaseOptions);
+        }
         this.platform = Utils.isEmptyString(platform) ? Constants.PLATFORM : platform;
+        if (uploadPolicy != null) {
+            updateConnectivityReceiver();
+        }
 
         final DatadiveClient client = this;
         runOnLogThread(() -> {
@@ -272,18 +369,17 @@ public class DatadiveClient {
                     }
 
                     if (useDynamicConfig) {
-                        ConfigManager.getInstance().refresh(new ConfigManager.RefreshListener() {
-                            @Override
-                            public void onFinished() {
-                                url = ConfigManager.getInstance().getIngestionEndpoint();
-                            }
-                        });
+                        refreshDynamicConfig();
                     }
 
-                    httpClient = new OkHttpClient();
+                    httpClient = getSharedHttpClient();
                     deviceInfo = new DeviceInfo(context, this.locationListening);
                     deviceId = initializeDeviceId();
                     deviceInfo.prefetch();
+                    deviceContext = buildDeviceContext();
+                    if (locationSnapshotTtlMillis > 0) {
+                        scheduleLocationRefresh();
+                    }
 
                     if (userId != null) {
                         client.userId = userId;
@@ -305,6 +401,9 @@ public class DatadiveClient {
                     lastEventId = getLongvalue(LAST_EVENT_ID_KEY, -1);
                     lastIdentifyId = getLongvalue(LAST_IDENTIFY_ID_KEY, -1);
                     lastEventTime = getLongvalue(LAST_EVENT_TIME_KEY, -1);
+                    recoverEventMetadata();
+                    sequenceNumberCeiling = sequenceNumber;
+                    restoreNextUploadAttempt();
 
                     // install database reset listener to re-insert metadata in memory
                     dbHelper.setDatabaseResetListener(new DatabaseResetListener() {
@@ -315,6 +414,9 @@ public class DatadiveClient {
                             dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, OPT_OUT_KEY, client.optOut ? 1L : 0L);
                             dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, PREVIOUS_SESSION_ID_KEY, client.sessionId);
                             dbHelper.insertOrReplaceKeyValueToTable(db, DatabaseHelper.LONG_STORE_TABLE_NAME, LAST_EVENT_TIME_KEY, client.lastEventTime);
+                            // the reserved block is gone with the database, reserve a new one
+                            // with the next sequence number
+                            client.sequenceNumberCeiling = client.sequenceNumber;
                         }
                     });
 
@@ -346,7 +448,9 @@ public class DatadiveClient {
         }
 
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
-            app.registerActivityLifecycleCallbacks(new DatadiveCallbacks(this));
+            DatadiveCallbacks callbacks = new DatadiveCallbacks(this);
+            app.registerActivityLifecycleCallbacks(callbacks);
+            app.registerComponentCallbacks(callbacks);
         }
 
         return this;
@@ -411,6 +515,7 @@ public class DatadiveClient {
         this.locationListening = true;
         if (this.deviceInfo != null) {
             this.deviceInfo.setLocationListening(true);
+            scheduleLocationRefresh();
         }
         return this;
     }
@@ -431,6 +536,49 @@ public class DatadiveClient {
         return this;
     }
 
+    /**
+     * Sets how long the location added to events is cached. Events read the cached location,
+     * and it is refreshed from the LocationManager in the background once it is older than
+     * this, instead of querying the location providers for every event. Set to 0 to query them
+     * for every event.
+     *
+     * @param locationSnapshotTtlMillis the location cache TTL in milliseconds
+     * @return the DatadiveClient
+     */
+    public DatadiveClient setLocationSnapshotTtlMillis(long locationSnapshotTtlMillis) {
+        this.locationSnapshotTtlMillis = Math.max(0, locationSnapshotTtlMillis);
+        return this;
+    }
+
+    /**
+     * The location for an event. Reads the cached snapshot and leaves refreshing it to
+     * httpThread, so neither this event nor the ones queued behind it on logThread wait for
+     * the location providers.
+     */
+    private Location getEventLocation() {
+        if (locationSnapshotTtlMillis <= 0) {
+            return deviceInfo.getMostRecentLocation();
+        }
+        if (deviceInfo.isLocationSnapshotStale(locationSnapshotTtlMillis)) {
+            scheduleLocationRefresh();
+        }
+        return deviceInfo.getLocationSnapshot();
+    }
+
+    private void scheduleLocationRefresh() {
+        if (locationRefreshScheduled.getAndSet(true)) {
+            return;
+        }
+        // the permission check and the LocationManager calls are binder IPCs
+        httpThread.post(new Runnable() {
+            @Override
+            public void run() {
+                locationRefreshScheduled.set(false);
+                deviceInfo.refreshLocationSnapshot();
+            }
+        });
+    }
+
     /**
      * Sets event upload threshold. The SDK will attempt to batch upload unsent events
      * every eventUploadPeriodMillis milliseconds, or if the unsent event count exceeds the
@@ -457,6 +605,76 @@ public class DatadiveClient {
         return this;
     }
 
+    /**
+     * Sets event upload max batch bytes. Besides the event count limit, each upload request
+     * stops before its events JSON would exceed this many bytes, using the sizes recorded when
+     * the events were saved. A single larger event is still sent on its own. 0 (the default)
+     * means no byte limit.
+     *
+     * @param eventUploadMaxBatchBytes the maximum size of the events JSON per upload in bytes
+     * @return the DatadiveClient
+     */
+    public DatadiveClient setEventUploadMaxBatchBytes(long eventUploadMaxBatchBytes) {
+        this.eventUploadMaxBatchBytes = Math.max(0, eventUploadMaxBatchBytes);
+        return this;
+    }
+
+    /**
+     * Adapt the upload batch size to the network instead of always using the event upload max
+     * batch size. The size grows by a fixed step after every full batch acknowledged within
+     * slowResponseMillis, and is halved after a slower response, a 413 or a timeout. Sizes
+     * are learned and stored per network type (wifi, cellular, ...), so they survive restarts.
+     * A network type starts at the event upload max batch size.
+     *
+     * @param minBatchSize       the smallest batch size
+     * @param maxBatchSize       the largest batch size
+     * @param slowResponseMillis responses slower than this shrink the batch size
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableAdaptiveBatchSize(int minBatchSize, int maxBatchSize,
+                                                  long slowResponseMillis) {
+        this.adaptiveBatchSize = new AdaptiveBatchSize(minBatchSize, maxBatchSize,
+                Constants.ADAPTIVE_BATCH_SIZE_INCREMENT, slowResponseMillis);
+        return this;
+    }
+
+    /**
+     * Always upload batches of up to the event upload max batch size (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableAdaptiveBatchSize() {
+        this.adaptiveBatchSize = null;
+        return this;
+    }
+
+    /**
+     * Retry failed uploads on a timer with capped exponential backoff and full jitter, instead
+     * of whenever the next event is logged. After the nth consecutive failure the next attempt
+     * is a random delay between 0 and min(maxDelayMillis, baseDelayMillis * 2^(n-1)), or later
+     * if a 429 or 503 response carries a Retry-After header. Until then no uploads are
+     * attempted. The time of the next attempt is stored, so it also holds across restarts.
+     *
+     * @param baseDelayMillis the backoff ceiling after the first failure
+     * @param maxDelayMillis  the largest backoff ceiling
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableUploadRetryBackoff(long baseDelayMillis, long maxDelayMillis) {
+        this.uploadRetryBaseDelayMillis = Math.max(1, baseDelayMillis);
+        this.uploadRetryMaxDelayMillis = Math.max(this.uploadRetryBaseDelayMillis, maxDelayMillis);
+        return this;
+    }
+
+    /**
+     * Attempt uploads again with the next logged event after a failure (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableUploadRetryBackoff() {
+        this.uploadRetryBaseDelayMillis = 0;
+        return this;
+    }
+
     /**
      * Sets event max count. This is the maximum number of unsent events to keep on the device
      * (for example if the device does not have internet connectivity and cannot upload events).
@@ -484,6 +702,192 @@ public class DatadiveClient {
         return this;
     }
 
+    /**
+     * Spread periodic uploads over a window after the event upload period, so that devices
+     * which logged events at the same moment, after a push campaign for example, do not all
+     * upload at the same moment too. Each device waits an extra offset between 0 and
+     * windowMillis derived from its device id, so the offset is stable for a device and
+     * uniformly spread across devices. With dynamic config enabled the server can override the
+     * window for as long as its config sets one. Uploads triggered by the event upload
+     * threshold are not delayed.
+     *
+     * @param windowMillis the window periodic uploads are spread over
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableFlushJitter(long windowMillis) {
+        this.flushJitterWindowMillis = Math.max(0, windowMillis);
+        return this;
+    }
+
+    /**
+     * Upload exactly every event upload period (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableFlushJitter() {
+        this.flushJitterWindowMillis = 0;
+        return this;
+    }
+
+    /**
+     * On cellular networks, hold back threshold and periodic uploads until the radio is likely
+     * awake anyway, instead of waking it for every upload: when the app reports network
+     * activity through {@link Datadive#notifyNetworkActivity()}, when the app enters the
+     * foreground, or when any instance uploads. Held back uploads of all instances are sent
+     * together. An upload is never held back longer than maxDelayMillis. Explicit calls to
+     * uploadEvents() are not held back.
+     *
+     * @param maxDelayMillis the longest an upload is held back
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableRadioAwareUploads(long maxDelayMillis) {
+        this.radioAwareMaxDelayMillis = Math.max(1, maxDelayMillis);
+        return this;
+    }
+
+    /**
+     * Upload as soon as the event upload threshold or period is reached (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableRadioAwareUploads() {
+        this.radioAwareMaxDelayMillis = 0;
+        if (RadioActivity.remove(this)) {
+            uploadDeferredEvents();
+        }
+        return this;
+    }
+
+    /**
+     * Hand events from the calling threads to the background thread through a pre-allocated
+     * ring buffer of capacity slots instead of posting a Handler message for each event. The
+     * background thread processes all waiting events at once. Other calls that are processed
+     * on the background thread, like setUserId, go through the buffer too, so they stay in
+     * order with the events. Should be called before initialize.
+     *
+     * @param capacity the number of event slots, rounded up to a power of two
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableEventRingBuffer(int capacity) {
+        eventRingBuffer = new EventRingBuffer(capacity, new EventRingBuffer.Consumer() {
+            @Override
+            public void onEvent(String eventType, JSONObject eventProperties,
+                                JSONObject apiProperties, JSONObject userProperties,
+                                JSONObject groups, JSONObject groupProperties, long timestamp,
+                                boolean outOfSession) {
+                if (Utils.isEmptyString(apiKey)) {  // in case initialization failed
+                    return;
+                }
+                logEvent(eventType, eventProperties, apiProperties, userProperties, groups,
+                    groupProperties, timestamp, outOfSession);
+            }
+
+            @Override
+            public void wakeUp(EventRingBuffer buffer) {
+                logThread.post(buffer.drainTask);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Post a Handler message for each event (the default). Events already in the ring buffer
+     * are still processed.
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableEventRingBuffer() {
+        eventRingBuffer = null;
+        return this;
+    }
+
+    /**
+     * Send the upload batches of all instances with coalescing enabled in one request, instead
+     * of one request per instance. Each batch is sent as the usual JSON upload payload, tagged
+     * with its instance's API key in the client field, and the request body is a JSON array of
+     * these payloads. Batches that are ready within windowMillis of the first one share its
+     * request if they go to the same endpoint. The endpoint must accept coalesced uploads, and
+     * can answer with one result per payload, in order, or a single result for all of them,
+     * such as success or a 429 or 5xx error. If it rejects the request as too large, or gives a
+     * 2xx answer that is neither, each instance sends its batch again in its own request.
+     *
+     * @param windowMillis how long the first batch waits for batches of other instances
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableUploadCoalescing(long windowMillis) {
+        this.uploadCoalescingWindowMillis = Math.max(1, windowMillis);
+        return this;
+    }
+
+    /**
+     * Send a separate upload request for each instance (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableUploadCoalescing() {
+        this.uploadCoalescingWindowMillis = 0;
+        return this;
+    }
+
+    /**
+     * Consult an upload policy before each upload request, to skip uploads or change the
+     * batch size depending on connectivity, metered networks and charging state. See
+     * {@link UploadPolicies} for the built-in policies. While a policy is set, the SDK also
+     * uploads as soon as the network reconnects. Pass null to remove the policy (the default).
+     *
+     * @param uploadPolicy the upload policy
+     * @return the DatadiveClient
+     */
+    public synchronized DatadiveClient setUploadPolicy(UploadPolicy uploadPolicy) {
+        this.uploadPolicy = uploadPolicy;
+        if (context != null) {
+            updateConnectivityReceiver();
+        }
+        return this;
+    }
+
+    /**
+     * Registers the reconnect listener while an upload policy is set, and removes it otherwise.
+     */
+    private synchronized void updateConnectivityReceiver() {
+        if (uploadPolicy == null) {
+            if (connectivityReceiver != null) {
+                context.unregisterReceiver(connectivityReceiver);
+                connectivityReceiver = null;
+            }
+            return;
+        }
+        if (connectivityReceiver != null) {
+            return;
+        }
+
+        connectivityReceiver = new BroadcastReceiver() {
+            private boolean connected = getUploadConditions().isConnected();
+
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                boolean wasConnected = connected;
+                connected = getUploadConditions().isConnected();
+                if (connected && !wasConnected) {
+                    logger.d(TAG, "Network reconnected, uploading events");
+                    uploadEvents();
+                }
+            }
+        };
+        context.registerReceiver(
+            connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION)
+        );
+    }
+
+    /**
+     * Current network and power state for the upload policy. Overridden in tests.
+     *
+     * @return the upload conditions
+     */
+    protected UploadConditions getUploadConditions() {
+        return UploadConditions.fromContext(context);
+    }
+
     /**
      * Sets min time between sessions millis.
      *
@@ -537,6 +941,7 @@ public class DatadiveClient {
             appliedTrackingOptions.mergeIn(TrackingOptions.forCoppaControl());
         }
         apiPropertiesTrackingOptions = appliedTrackingOptions.getApiPropertiesTrackingOptions();
+        updateDeviceContext();
         return this;
     }
     
@@ -548,6 +953,7 @@ public class DatadiveClient {
         coppaControlEnabled = true;
         appliedTrackingOptions.mergeIn(TrackingOptions.forCoppaControl());
         apiPropertiesTrackingOptions = appliedTrackingOptions.getApiPropertiesTrackingOptions();
+        updateDeviceContext();
         return this;
     }
 
@@ -558,6 +964,7 @@ public class DatadiveClient {
         coppaControlEnabled = false;
         appliedTrackingOptions = TrackingOptions.copyOf(inputTrackingOptions);
         apiPropertiesTrackingOptions = appliedTrackingOptions.getApiPropertiesTrackingOptions();
+        updateDeviceContext();
         return this;
     }
 
@@ -594,6 +1001,7 @@ public class DatadiveClient {
      */
     public DatadiveClient setLibraryName(final String libraryName) {
         this.libraryName = libraryName;
+        updateDeviceContext();
         return this;
     }
 
@@ -605,9 +1013,30 @@ public class DatadiveClient {
      */
     public DatadiveClient setLibraryVersion(final String libraryVersion) {
         this.libraryVersion = libraryVersion;
+        updateDeviceContext();
         return this;
     }
 
+    /**
+     * Rebuilds the device context for events logged from now on, once deviceInfo is available.
+     */
+    private void updateDeviceContext() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                if (deviceInfo != null) {
+                    deviceContext = buildDeviceContext();
+                }
+            }
+        });
+    }
+
+    private DeviceContext buildDeviceContext() {
+        return DeviceContext.build(
+            deviceInfo, appliedTrackingOptions, platform, libraryName, libraryVersion
+        );
+    }
+
     /**
      * Returns whether or not the user is opted out of tracking.
      *
@@ -695,6 +1124,281 @@ public class DatadiveClient {
         return this;
     }
 
+    /**
+     * Tune the SQLite database backing this instance, for example to enable write-ahead logging.
+     * The options are applied the next time the database is opened.
+     *
+     * @param databaseOptions the DatabaseOptions object
+     * @return the DatadiveClient
+     */
+    public DatadiveClient setDatabaseOptions(DatabaseOptions databaseOptions) {
+        this.databaseOptions = databaseOptions;
+        if (this.dbHelper != null) {
+            this.dbHelper.setDatabaseOptions(databaseOptions);
+        }
+        return this;
+    }
+
+    /**
+     * Keep a single SQLite connection open for the lifetime of this instance instead of opening
+     * and closing the database file around every read and write. The connection is released
+     * when the system asks the app to trim memory (requires {@link #enableForegroundTracking(Application)}),
+     * when {@link #releaseDatabaseConnection()} is called, or after no database activity for
+     * idleTimeoutMillis milliseconds. It is reopened transparently on the next operation.
+     *
+     * @param idleTimeoutMillis how long the connection may stay idle before it is closed
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enablePersistentDatabaseConnection(long idleTimeoutMillis) {
+        this.keepDatabaseOpen = true;
+        this.databaseIdleTimeoutMillis = idleTimeoutMillis;
+        if (this.dbHelper != null) {
+            this.dbHelper.setKeepDatabaseOpen(true);
+        }
+        return this;
+    }
+
+    /**
+     * Go back to opening and closing the database around every operation (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disablePersistentDatabaseConnection() {
+        this.keepDatabaseOpen = false;
+        if (this.dbHelper != null) {
+            runOnLogThread(new Runnable() {
+                @Override
+                public void run() {
+                    dbHelper.setKeepDatabaseOpen(false);
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Close the database connection held open by {@link #enablePersistentDatabaseConnection(long)},
+     * for example when shutting down. Pending database work is finished first.
+     */
+    public void releaseDatabaseConnection() {
+        if (!contextAndApiKeySet("releaseDatabaseConnection()")) {
+            return;
+        }
+
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                dbHelper.close();
+            }
+        });
+    }
+
+    /**
+     * Internal method to release resources when the system is low on memory.
+     *
+     * @param level the trim memory level
+     */
+    void onTrimMemory(int level) {
+        if (writeBehindMetadata && dbHelper != null) {
+            runOnLogThread(new Runnable() {
+                @Override
+                public void run() {
+                    persistMetadata();
+                }
+            });
+        }
+        if (keepDatabaseOpen && dbHelper != null) {
+            releaseDatabaseConnection();
+        }
+    }
+
+    private void scheduleDatabaseIdleCheck() {
+        if (!keepDatabaseOpen || databaseIdleCheckScheduled.getAndSet(true)) {
+            return;
+        }
+
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                databaseIdleCheckScheduled.set(false);
+                if (keepDatabaseOpen && !dbHelper.closeIfIdle(databaseIdleTimeoutMillis)) {
+                    scheduleDatabaseIdleCheck();
+                }
+            }
+        }, databaseIdleTimeoutMillis);
+    }
+
+    /**
+     * Batch event writes on the background thread. Events logged within windowMillis of each
+     * other, up to maxBatchSize events, are inserted into the database in a single transaction
+     * instead of one transaction (and one disk sync) per event. Events that have not been
+     * written yet can be lost if the process is killed, so keep the window short. Buffered
+     * events have no ID yet, logEvent and saveEvent return {@link #EVENT_ID_DEFERRED} for them.
+     *
+     * @param maxBatchSize  the maximum number of events written per transaction
+     * @param windowMillis  how long to wait for more events before writing a partial batch
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableGroupCommit(int maxBatchSize, long windowMillis) {
+        this.groupCommitMaxBatchSize = Math.max(1, maxBatchSize);
+        this.groupCommitWindowMillis = Math.max(0, windowMillis);
+        return this;
+    }
+
+    /**
+     * Write every event to the database as soon as it is logged (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableGroupCommit() {
+        this.groupCommitMaxBatchSize = 1;
+        this.groupCommitWindowMillis = 0;
+        if (contextAndApiKeySet("disableGroupCommit()")) {
+            runOnLogThread(new Runnable() {
+                @Override
+                public void run() {
+                    flushPendingEvents();
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Keep the sequence number, last event id and last event time in memory and write them to
+     * the database together every persistPeriodMillis, and when the app leaves the foreground,
+     * instead of after every event. If the process dies before a write, the ids and sequence
+     * number are recovered from the queued events on the next launch.
+     *
+     * @param persistPeriodMillis how long changed metadata may stay in memory only
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableWriteBehindMetadata(long persistPeriodMillis) {
+        this.metadataPersistPeriodMillis = Math.max(0, persistPeriodMillis);
+        this.writeBehindMetadata = true;
+        return this;
+    }
+
+    /**
+     * Write event metadata to the database as soon as it changes (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableWriteBehindMetadata() {
+        if (!contextAndApiKeySet("disableWriteBehindMetadata()")) {
+            this.writeBehindMetadata = false;
+            return this;
+        }
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                persistMetadata();
+                writeBehindMetadata = false;
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Reserve event sequence numbers in blocks of blockSize with a single database write per
+     * block, instead of writing the sequence number after every event. After a restart
+     * numbering resumes above the last reserved block, so sequence numbers stay increasing
+     * but can skip up to blockSize values. A block size of 1 (the default) persists every
+     * number.
+     *
+     * @param blockSize the number of sequence numbers reserved per write
+     * @return the DatadiveClient
+     */
+    public DatadiveClient setSequenceNumberBlockSize(int blockSize) {
+        this.sequenceNumberBlockSize = Math.max(1, blockSize);
+        return this;
+    }
+
+    /**
+     * Gzip event upload requests and send them with Content-Encoding: gzip. The checksum is
+     * still computed over the uncompressed field values, so it does not depend on the
+     * compression. Only enable this if your endpoint accepts gzipped request bodies.
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableUploadCompression() {
+        this.uploadCompression = true;
+        return this;
+    }
+
+    /**
+     * Send event upload requests uncompressed (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableUploadCompression() {
+        this.uploadCompression = false;
+        return this;
+    }
+
+    /**
+     * Send event uploads as an application/json object with the fields v, client, e,
+     * upload_time and checksum, instead of a form with the events array URL encoded into the
+     * e field. The events array is embedded as is, which makes the request considerably
+     * smaller. Only enable this if your endpoint accepts JSON upload bodies.
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableJsonUploadBody() {
+        this.jsonUploadBody = true;
+        return this;
+    }
+
+    /**
+     * Send event uploads as a form encoded body (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableJsonUploadBody() {
+        this.jsonUploadBody = false;
+        return this;
+    }
+
+    /**
+     * Upload with API version 3, where e is an envelope {"common":{...},"events":[...]} instead
+     * of an array. The device fields, library, user id and device id of the first event in a
+     * batch are sent once in common and removed from every event that shares them, and the
+     * server merges common back into those events. Events of another user or device are sent
+     * complete. Only enable this if your endpoint accepts API version 3.
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient enableEnvelopeUploadBody() {
+        this.envelopeUploadBody = true;
+        return this;
+    }
+
+    /**
+     * Upload complete events with API version 2 (the default).
+     *
+     * @return the DatadiveClient
+     */
+    public DatadiveClient disableEnvelopeUploadBody() {
+        this.envelopeUploadBody = false;
+        return this;
+    }
+
+    /**
+     * Keep up to maxConcurrentUploads batches in flight while draining the event queue,
+     * instead of waiting for each batch to be acknowledged before sending the next one.
+     * Batches cover disjoint ranges of events and are removed from the queue in order, so an
+     * event is only dropped once it and every event before it has been acknowledged. If a
+     * batch fails, later batches that succeeded are sent again with the next upload. The
+     * default is 1.
+     *
+     * @param maxConcurrentUploads the maximum number of upload requests in flight
+     * @return the DatadiveClient
+     */
+    public DatadiveClient setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = Math.max(1, maxConcurrentUploads);
+        return this;
+    }
+
     /**
      * Set foreground tracking to true.
      */
@@ -958,6 +1662,13 @@ public class DatadiveClient {
             groupProperties = Utils.cloneJSONObject(groupProperties);
         }
 
+        EventRingBuffer ring = eventRingBuffer;
+        if (ring != null && Thread.currentThread() != logThread && ring.offerEvent(
+                eventType, eventProperties, apiProperties, userProperties, groups,
+                groupProperties, timestamp, outOfSession)) {
+            return;
+        }
+
         final JSONObject copyEventProperties = eventProperties;
         final JSONObject copyApiProperties = apiProperties;
         final JSONObject copyUserProperties = userProperties;
@@ -988,7 +1699,8 @@ public class DatadiveClient {
      * @param groups          the groups
      * @param timestamp       the timestamp
      * @param outOfSession    the out of session
-     * @return the event ID if succeeded, else -1.
+     * @return the event ID if succeeded, {@link #EVENT_ID_DEFERRED} if the write was deferred
+     * to the group commit writer, else -1.
      */
     protected long logEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
             JSONObject userProperties, JSONObject groups, JSONObject groupProperties,
@@ -1015,60 +1727,22 @@ public class DatadiveClient {
         long result = -1;
         JSONObject event = new JSONObject();
         try {
-            event.put("event_type", replaceWithJSONNull(eventType));
-            event.put("timestamp", timestamp);
+            // identity first, right after the device context, see EventBatch.getCommonMembers
             event.put("user_id", replaceWithJSONNull(userId));
             event.put("device_id", replaceWithJSONNull(deviceId));
+            event.put("event_type", replaceWithJSONNull(eventType));
+            event.put("timestamp", timestamp);
             event.put("session_id", outOfSession ? -1 : sessionId);
             event.put("uuid", UUID.randomUUID().toString());
             event.put("sequence_number", getNextSequenceNumber());
 
-            if (appliedTrackingOptions.shouldTrackVersionName()) {
-                event.put("version_name", replaceWithJSONNull(deviceInfo.getVersionName()));
-            }
-            if (appliedTrackingOptions.shouldTrackOsName()) {
-                event.put("os_name", replaceWithJSONNull(deviceInfo.getOsName()));
-            }
-            if (appliedTrackingOptions.shouldTrackOsVersion()) {
-                event.put("os_version", replaceWithJSONNull(deviceInfo.getOsVersion()));
-            }
-            if (appliedTrackingOptions.shouldTrackApiLevel()) {
-                event.put("api_level", replaceWithJSONNull(Build.VERSION.SDK_INT));
-            }
-            if (appliedTrackingOptions.shouldTrackDeviceBrand()) {
-                event.put("device_brand", replaceWithJSONNull(deviceInfo.getBrand()));
-            }
-            if (appliedTrackingOptions.shouldTrackDeviceManufacturer()) {
-                event.put("device_manufacturer", replaceWithJSONNull(deviceInfo.getManufacturer()));
-            }
-            if (appliedTrackingOptions.shouldTrackDeviceModel()) {
-                event.put("device_model", replaceWithJSONNull(deviceInfo.getModel()));
-            }
-            if (appliedTrackingOptions.shouldTrackCarrier()) {
-                event.put("carrier", replaceWithJSONNull(deviceInfo.getCarrier()));
-            }
-            if (appliedTrackingOptions.shouldTrackCountry()) {
-                event.put("country", replaceWithJSONNull(deviceInfo.getCountry()));
-            }
-            if (appliedTrackingOptions.shouldTrackLanguage()) {
-                event.put("language", replaceWithJSONNull(deviceInfo.getLanguage()));
-            }
-            if (appliedTrackingOptions.shouldTrackPlatform()) {
-                event.put("platform", platform);
-            }
-
-            JSONObject library = new JSONObject();
-            library.put("name", this.libraryName == null ? Constants.LIBRARY_UNKNOWN : this.libraryName);
-            library.put("version", this.libraryVersion == null ? Constants.VERSION_UNKNOWN : this.libraryVersion);
-            event.put("library", library);
-
             apiProperties = (apiProperties == null) ? new JSONObject() : apiProperties;
             if (apiPropertiesTrackingOptions != null && apiPropertiesTrackingOptions.length() > 0) {
                 apiProperties.put("tracking_options", apiPropertiesTrackingOptions);
             }
 
             if (appliedTrackingOptions.shouldTrackLatLng()) {
-                Location location = deviceInfo.getMostRecentLocation();
+                Location location = getEventLocation();
                 if (location != null) {
                     JSONObject locationJSON = new JSONObject();
                     locationJSON.put("lat", location.getLatitude());
@@ -1102,14 +1776,20 @@ public class DatadiveClient {
     }
 
     /**
-     * Save event long. Internal method to save an event to the database.
+     * Save event long. Internal method to save an event to the database. The device fields
+     * and library info of the current device context are spliced in, unless the event already
+     * has its own library info.
      *
      * @param eventType the event type
      * @param event     the event
-     * @return the event ID if succeeded, else -1
+     * @return the event ID if succeeded, {@link #EVENT_ID_DEFERRED} if the write was deferred
+     * to the group commit writer, else -1.
      */
     protected long saveEvent(String eventType, JSONObject event) {
         String eventString = event.toString();
+        if (deviceContext != null && !event.has("library")) {
+            eventString = deviceContext.splice(eventString);
+        }
         if (Utils.isEmptyString(eventString)) {
             logger.e(TAG, String.format(
                 "Detected empty event string for event type %s, skipping", eventType
@@ -1117,37 +1797,124 @@ public class DatadiveClient {
             return -1;
         }
 
-        if (eventType.equals(Constants.IDENTIFY_EVENT) || eventType.equals(Constants.GROUP_IDENTIFY_EVENT)) {
-            lastIdentifyId = dbHelper.addIdentify(eventString);
-            setLastIdentifyId(lastIdentifyId);
-        } else {
-            lastEventId = dbHelper.addEvent(eventString);
-            setLastEventId(lastEventId);
+        boolean isIdentify = eventType.equals(Constants.IDENTIFY_EVENT) ||
+                eventType.equals(Constants.GROUP_IDENTIFY_EVENT);
+        long sequenceNumber = event.optLong("sequence_number");
+
+        if (groupCommitMaxBatchSize > 1) {
+            if (isIdentify) {
+                pendingIdentifys.add(eventString);
+                pendingIdentifySequenceNumbers.add(sequenceNumber);
+            } else {
+                pendingEvents.add(eventString);
+                pendingEventSequenceNumbers.add(sequenceNumber);
+            }
+            if (pendingEvents.size() + pendingIdentifys.size() >= groupCommitMaxBatchSize) {
+                flushPendingEvents();
+            } else {
+                scheduleGroupCommit();
+            }
+            return EVENT_ID_DEFERRED;
+        }
+
+        if (isIdentify) {
+            lastIdentifyId = dbHelper.addIdentify(eventString, sequenceNumber);
+            setLastIdentifyId(lastIdentifyId);
+        } else {
+            lastEventId = dbHelper.addEvent(eventString, sequenceNumber);
+            setLastEventId(lastEventId);
+        }
+
+        removeExcessEvents();
+        uploadIfThresholdReached(1);
+
+        return isIdentify ? lastIdentifyId : lastEventId;
+    }
+
+    /**
+     * Internal method to write all events buffered by the group commit writer and trigger an
+     * upload if the new rows cross the upload threshold. <b>Note: </b> always call this on
+     * logThread
+     */
+    void flushPendingEvents() {
+        int numEventsSaved = writePendingEvents();
+        if (numEventsSaved > 0) {
+            uploadIfThresholdReached(numEventsSaved);
+        }
+    }
+
+    private int writePendingEvents() {
+        int numEventsSaved = pendingEvents.size() + pendingIdentifys.size();
+        if (numEventsSaved == 0) {
+            return 0;
+        }
+
+        // a failed transaction loses the buffered events, but not the ids of the rows before
+        if (!pendingEvents.isEmpty()) {
+            long eventId = dbHelper.addEvents(pendingEvents, pendingEventSequenceNumbers);
+            if (eventId >= 0) {
+                setLastEventId(eventId);
+            }
+            pendingEvents.clear();
+            pendingEventSequenceNumbers.clear();
+        }
+        if (!pendingIdentifys.isEmpty()) {
+            long identifyId = dbHelper.addIdentifys(pendingIdentifys, pendingIdentifySequenceNumbers);
+            if (identifyId >= 0) {
+                setLastIdentifyId(identifyId);
+            }
+            pendingIdentifys.clear();
+            pendingIdentifySequenceNumbers.clear();
+        }
+
+        removeExcessEvents();
+        return numEventsSaved;
+    }
+
+    private void scheduleGroupCommit() {
+        if (groupCommitScheduled.getAndSet(true)) {
+            return;
         }
 
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                groupCommitScheduled.set(false);
+                flushPendingEvents();
+            }
+        }, groupCommitWindowMillis);
+    }
+
+    // drop the oldest events once a queue grows past eventMaxCount
+    private void removeExcessEvents() {
         int numEventsToRemove = Math.min(
                 Math.max(1, eventMaxCount/10),
                 Constants.EVENT_REMOVE_BATCH_SIZE
         );
-        if (dbHelper.getEventCount() > eventMaxCount) {
-            dbHelper.removeEvents(dbHelper.getNthEventId(numEventsToRemove));
+        long eventCount = dbHelper.getEventCount();
+        if (eventCount > eventMaxCount) {
+            dbHelper.removeEvents(dbHelper.getNthEventId(
+                    Math.max(numEventsToRemove, eventCount - eventMaxCount)));
         }
-        if (dbHelper.getIdentifyCount() > eventMaxCount) {
-            dbHelper.removeIdentifys(dbHelper.getNthIdentifyId(numEventsToRemove));
+        long identifyCount = dbHelper.getIdentifyCount();
+        if (identifyCount > eventMaxCount) {
+            dbHelper.removeIdentifys(dbHelper.getNthIdentifyId(
+                    Math.max(numEventsToRemove, identifyCount - eventMaxCount)));
         }
+    }
 
+    // upload right away whenever the last numEventsSaved rows pushed the queue across a
+    // multiple of eventUploadThreshold, otherwise make sure an upload is scheduled
+    private void uploadIfThresholdReached(long numEventsSaved) {
         long totalEventCount = dbHelper.getTotalEventCount(); // counts may have changed, refetch
-        if ((totalEventCount % eventUploadThreshold) == 0 &&
-                totalEventCount >= eventUploadThreshold) {
-            updateServer();
+        if (totalEventCount >= eventUploadThreshold &&
+                totalEventCount / eventUploadThreshold >
+                (totalEventCount - numEventsSaved) / eventUploadThreshold) {
+            updateServerWhenRadioActive();
         } else {
             updateServerLater(eventUploadPeriodMillis);
         }
-
-        return (
-            eventType.equals(Constants.IDENTIFY_EVENT) ||
-            eventType.equals(Constants.GROUP_IDENTIFY_EVENT)
-        ) ? lastIdentifyId : lastEventId;
+        scheduleDatabaseIdleCheck();
     }
 
     // fetches key from dbHelper longValueStore
@@ -1164,7 +1931,14 @@ public class DatadiveClient {
      */
     long getNextSequenceNumber() {
         sequenceNumber++;
-        dbHelper.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, sequenceNumber);
+        if (sequenceNumberBlockSize <= 1) {
+            writeMetadata(SEQUENCE_NUMBER_KEY, sequenceNumber);
+        } else if (sequenceNumber > sequenceNumberCeiling) {
+            // reserve the next block, written through so a restart never reuses a number
+            sequenceNumberCeiling = sequenceNumber + sequenceNumberBlockSize - 1;
+            dirtyMetadata.remove(SEQUENCE_NUMBER_KEY);
+            dbHelper.insertOrReplaceKeyLongValue(SEQUENCE_NUMBER_KEY, sequenceNumberCeiling);
+        }
         return sequenceNumber;
     }
 
@@ -1175,7 +1949,7 @@ public class DatadiveClient {
      */
     void setLastEventTime(long timestamp) {
         lastEventTime = timestamp;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_TIME_KEY, timestamp);
+        writeMetadata(LAST_EVENT_TIME_KEY, timestamp);
     }
 
     /**
@@ -1185,7 +1959,7 @@ public class DatadiveClient {
      */
     void setLastEventId(long eventId) {
         lastEventId = eventId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_EVENT_ID_KEY, eventId);
+        writeMetadata(LAST_EVENT_ID_KEY, eventId);
     }
 
     /**
@@ -1195,7 +1969,66 @@ public class DatadiveClient {
      */
     void setLastIdentifyId(long identifyId) {
         lastIdentifyId = identifyId;
-        dbHelper.insertOrReplaceKeyLongValue(LAST_IDENTIFY_ID_KEY, identifyId);
+        writeMetadata(LAST_IDENTIFY_ID_KEY, identifyId);
+    }
+
+    private void writeMetadata(String key, long value) {
+        if (!writeBehindMetadata) {
+            dbHelper.insertOrReplaceKeyLongValue(key, value);
+            return;
+        }
+
+        dirtyMetadata.put(key, value);
+        if (metadataPersistScheduled.getAndSet(true)) {
+            return;
+        }
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                metadataPersistScheduled.set(false);
+                persistMetadata();
+            }
+        }, metadataPersistPeriodMillis);
+    }
+
+    /**
+     * Internal method to write all metadata held by the write-behind store in one transaction.
+     * <b>Note: </b> always call this on logThread
+     */
+    void persistMetadata() {
+        if (dirtyMetadata.isEmpty()) {
+            return;
+        }
+        dbHelper.insertOrReplaceKeyLongValues(dirtyMetadata);
+        dirtyMetadata.clear();
+    }
+
+    // metadata written behind can lag the event tables if the process died before it was
+    // persisted, so never reuse an id or sequence number that is already queued
+    private void recoverEventMetadata() {
+        try {
+            JSONObject lastEvent = dbHelper.getLastEvent();
+            JSONObject lastIdentify = dbHelper.getLastIdentify();
+            long maxSequenceNumber = sequenceNumber;
+            if (lastEvent != null) {
+                maxSequenceNumber = Math.max(maxSequenceNumber, lastEvent.optLong("sequence_number"));
+                if (lastEvent.optLong("event_id") > lastEventId) {
+                    setLastEventId(lastEvent.optLong("event_id"));
+                }
+            }
+            if (lastIdentify != null) {
+                maxSequenceNumber = Math.max(maxSequenceNumber, lastIdentify.optLong("sequence_number"));
+                if (lastIdentify.optLong("event_id") > lastIdentifyId) {
+                    setLastIdentifyId(lastIdentify.optLong("event_id"));
+                }
+            }
+            if (maxSequenceNumber > sequenceNumber) {
+                sequenceNumber = maxSequenceNumber;
+                writeMetadata(SEQUENCE_NUMBER_KEY, sequenceNumber);
+            }
+        } catch (JSONException e) {
+            logger.e(TAG, "Failed to recover event metadata", e);
+        }
     }
 
     /**
@@ -1327,11 +2160,13 @@ public class DatadiveClient {
                 }
                 refreshSessionTime(timestamp);
                 inForeground = false;
+                flushPendingEvents();
                 if (flushEventsOnClose) {
                     updateServer();
                 }
 
                 // re-persist metadata into database for good measure
+                persistMetadata();
                 dbHelper.insertOrReplaceKeyValue(DEVICE_ID_KEY, deviceId);
                 dbHelper.insertOrReplaceKeyValue(USER_ID_KEY, userId);
                 dbHelper.insertOrReplaceKeyLongValue(OPT_OUT_KEY, optOut ? 1L : 0L);
@@ -1341,6 +2176,19 @@ public class DatadiveClient {
         });
     }
 
+    private void refreshDynamicConfig() {
+        ConfigManager.getInstance().refresh(new ConfigManager.RefreshListener() {
+            @Override
+            public void onFinished() {
+                url = ConfigManager.getInstance().getIngestionEndpoint();
+                // the server can spread periodic uploads even if the app did not ask for it,
+                // once it stops sending a window the app's setting applies again
+                serverFlushJitterWindowMillis =
+                        ConfigManager.getInstance().getFlushJitterWindowMillis();
+            }
+        });
+    }
+
     /**
      * Internal method to handle on app enter foreground behavior.
      *
@@ -1354,13 +2202,10 @@ public class DatadiveClient {
                     return;
                 }
                 if (useDynamicConfig) {
-                    ConfigManager.getInstance().refresh(new ConfigManager.RefreshListener() {
-                        @Override
-                        public void onFinished() {
-                            url = ConfigManager.getInstance().getIngestionEndpoint();
-                        }
-                    });
+                    refreshDynamicConfig();
                 }
+                // the app is likely to use the network now, deferred uploads can join in
+                RadioActivity.notifyActive();
                 startNewSessionIfNeeded(timestamp);
                 inForeground = true;
             }
@@ -1789,20 +2634,150 @@ public class DatadiveClient {
         });
     }
 
+    /**
+     * Picks up the upload backoff of a previous launch.
+     * <b>Note: </b> always call this on logThread
+     */
+    private void restoreNextUploadAttempt() {
+        long nextAttemptTime = getLongvalue(NEXT_UPLOAD_ATTEMPT_TIME_KEY, 0);
+        if (nextAttemptTime <= 0) {
+            return;
+        }
+        long delayMillis = Math.min(
+            Math.max(0, nextAttemptTime - getCurrentTimeMillis()),
+            Math.max(uploadRetryMaxDelayMillis, Constants.UPLOAD_RETRY_AFTER_MAX_MILLIS)
+        );
+        nextUploadAttemptUptime = SystemClock.uptimeMillis() + delayMillis;
+        if (uploadRetryBaseDelayMillis > 0) {
+            scheduleUploadRetry(delayMillis);
+        }
+    }
+
+    private void scheduleUploadRetry(long delayMillis) {
+        if (uploadRetryScheduled.getAndSet(true)) {
+            return;
+        }
+
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                uploadRetryScheduled.set(false);
+                updateServer();
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Backs off after a failed upload, with full jitter so that clients which failed together
+     * do not retry together. <b>Note: </b> always call this on logThread
+     */
+    private void backOffUploads(long retryAfterMillis) {
+        uploadFailureCount++;
+        long ceiling = uploadRetryBaseDelayMillis << Math.min(uploadFailureCount - 1, 30);
+        if (ceiling <= 0 || ceiling > uploadRetryMaxDelayMillis) {
+            ceiling = uploadRetryMaxDelayMillis;
+        }
+        long delayMillis = (long) (uploadRetryJitter.nextDouble() * ceiling);
+        if (retryAfterMillis >= 0) {
+            delayMillis = Math.max(
+                delayMillis, Math.min(retryAfterMillis, Constants.UPLOAD_RETRY_AFTER_MAX_MILLIS)
+            );
+        }
+
+        nextUploadAttemptUptime = SystemClock.uptimeMillis() + delayMillis;
+        writeMetadata(NEXT_UPLOAD_ATTEMPT_TIME_KEY, getCurrentTimeMillis() + delayMillis);
+        logger.w(TAG, String.format("Upload failed, retrying in %d ms", delayMillis));
+        scheduleUploadRetry(delayMillis);
+    }
+
+    /**
+     * Clears the backoff after a successful upload. <b>Note: </b> always call this on logThread
+     */
+    private void resetUploadBackoff() {
+        if (uploadFailureCount == 0 && nextUploadAttemptUptime == 0) {
+            return;
+        }
+        uploadFailureCount = 0;
+        nextUploadAttemptUptime = 0;
+        writeMetadata(NEXT_UPLOAD_ATTEMPT_TIME_KEY, 0);
+    }
+
+    /**
+     * This device's offset into the flush jitter window.
+     */
+    long getFlushPhaseOffsetMillis() {
+        long windowMillis = serverFlushJitterWindowMillis;
+        return getPhaseOffsetMillis(deviceId,
+                windowMillis >= 0 ? windowMillis : flushJitterWindowMillis);
+    }
+
+    // FNV-1a of the device id, so the offset is stable and spread evenly over the window
+    static long getPhaseOffsetMillis(String deviceId, long windowMillis) {
+        if (windowMillis <= 0 || Utils.isEmptyString(deviceId)) {
+            return 0;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < deviceId.length(); i++) {
+            hash ^= deviceId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return (hash >>> 1) % windowMillis;
+    }
+
     private void updateServerLater(long delayMillis) {
         if (updateScheduled.getAndSet(true)) {
             return;
         }
+        delayMillis += getFlushPhaseOffsetMillis();
 
         logThread.postDelayed(new Runnable() {
             @Override
             public void run() {
                 updateScheduled.set(false);
-                updateServer();
+                updateServerWhenRadioActive();
             }
         }, delayMillis);
     }
 
+    /**
+     * Uploads now, unless radio aware uploads are enabled, the device is on a cellular network
+     * and the radio is idle. Then the upload waits for the next radio activity or the max delay.
+     * <b>Note: </b> always call this on logThread
+     */
+    private void updateServerWhenRadioActive() {
+        if (radioAwareMaxDelayMillis <= 0 || RadioActivity.isActive() ||
+                !Constants.NETWORK_TYPE_CELLULAR.equals(Utils.getNetworkType(context))) {
+            updateServer();
+            return;
+        }
+
+        RadioActivity.defer(this);
+        if (radioDeadlineScheduled.getAndSet(true)) {
+            return;
+        }
+        logThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                radioDeadlineScheduled.set(false);
+                if (RadioActivity.remove(DatadiveClient.this)) {
+                    updateServer();
+                }
+            }
+        }, radioAwareMaxDelayMillis);
+    }
+
+    /**
+     * Called by RadioActivity when the radio woke up.
+     */
+    void uploadDeferredEvents() {
+        runOnLogThread(new Runnable() {
+            @Override
+            public void run() {
+                updateServer();
+            }
+        });
+    }
+
     /**
      * Internal method to upload unsent events.
      */
@@ -1817,156 +2792,262 @@ public class DatadiveClient {
      * @param limit the limit
      */
     protected void updateServer(boolean limit) {
+        // make sure buffered events are on disk before reading a batch
+        writePendingEvents();
+
         if (optOut || offline) {
             return;
         }
 
+        if (uploadRetryBaseDelayMillis > 0 && nextUploadAttemptUptime > 0) {
+            long waitMillis = nextUploadAttemptUptime - SystemClock.uptimeMillis();
+            if (waitMillis > 0) {
+                // backing off after failed uploads, the retry timer uploads when it is over
+                scheduleUploadRetry(waitMillis);
+                return;
+            }
+        }
+
         // if returning out of this block, always be sure to set uploadingCurrently to false!!
         if (!uploadingCurrently.getAndSet(true)) {
+            uploadFailed = false;
+            uploadRetryable = false;
+            uploadRetryAfterMillis = -1;
+            uploadCursorEventId = -1;
+            uploadCursorIdentifyId = -1;
+            fillUploadPipeline(limit);
+            if (inFlightBatches.isEmpty()) {
+                uploadingCurrently.set(false);
+            }
+        }
+    }
+
+    /**
+     * Reads and sends batches after the ones already in flight until maxConcurrentUploads
+     * batches are in flight or the queue is drained. <b>Note: </b> always call this on logThread
+     *
+     * @param limit whether to use the backoff upload batch size
+     */
+    private void fillUploadPipeline(boolean limit) {
+        UploadPolicy policy = uploadPolicy;
+        UploadConditions conditions = policy == null ? null : getUploadConditions();
+        while (inFlightBatches.size() < maxConcurrentUploads) {
             long totalEventCount = dbHelper.getTotalEventCount();
-            long batchSize = Math.min(
-                limit ? backoffUploadBatchSize : eventUploadMaxBatchSize,
-                totalEventCount
-            );
+            long batchSize = limit ? backoffUploadBatchSize : eventUploadMaxBatchSize;
+            AdaptiveBatchSize adaptive = adaptiveBatchSize;
+            String networkType = null;
+            if (adaptive != null) {
+                networkType = Utils.getNetworkType(context);
+                int adaptiveSize = getAdaptiveBatchSize(adaptive, networkType);
+                batchSize = limit ? Math.min(backoffUploadBatchSize, adaptiveSize) : adaptiveSize;
+            }
+            if (policy != null) {
+                batchSize = policy.getBatchSize(conditions, (int) batchSize);
+            }
+            batchSize = Math.min(batchSize, totalEventCount);
 
             if (batchSize <= 0) {
-                uploadingCurrently.set(false);
                 return;
             }
 
             try {
-                List<JSONObject> events = dbHelper.getEvents(lastEventId, batchSize);
-                List<JSONObject> identifys = dbHelper.getIdentifys(lastIdentifyId, batchSize);
-
-                final Pair<Pair<Long, Long>, JSONArray> merged = mergeEventsAndIdentifys(
-                        events, identifys, batchSize);
-                final JSONArray mergedEvents = merged.second;
-                if (mergedEvents.length() == 0) {
-                    uploadingCurrently.set(false);
+                final EventBatch batch = dbHelper.getEventsAndIdentifys(
+                        uploadCursorEventId, uploadCursorIdentifyId,
+                        lastEventId, lastIdentifyId, batchSize, eventUploadMaxBatchBytes);
+                if (batch.isEmpty()) {
                     return;
                 }
-                final long maxEventId = merged.first.first;
-                final long maxIdentifyId = merged.first.second;
-                final String mergedEventsString = merged.second.toString();
-
-                httpThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        makeEventUploadPostRequest(httpClient, mergedEventsString, maxEventId, maxIdentifyId);
-                    }
-                });
-            } catch (JSONException e) {
-                uploadingCurrently.set(false);
-                logger.e(TAG, e.toString());
+
+                batch.networkType = networkType;
+                batch.envelope = envelopeUploadBody;
+                inFlightBatches.add(batch);
+                uploadCursorEventId = Math.max(uploadCursorEventId, batch.maxEventId);
+                uploadCursorIdentifyId = Math.max(uploadCursorIdentifyId, batch.maxIdentifyId);
+                if (uploadCoalescingWindowMillis > 0) {
+                    UploadCoalescer.submit(this, batch, uploadCoalescingWindowMillis);
+                } else {
+                    httpThread.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            makeEventUploadPostRequest(httpClient, batch);
+                        }
+                    });
+                }
             } catch (CursorWindowAllocationException e) {
                 // handle CursorWindowAllocationException when fetching events, defer upload
-                uploadingCurrently.set(false);
                 logger.e(TAG, String.format(
                     "Caught Cursor window exception during event upload, deferring upload: %s",
                     e.getMessage()
                 ));
+                return;
             }
         }
     }
 
+    // loads the size learned for the network type, or starts at the max batch size
+    private int getAdaptiveBatchSize(AdaptiveBatchSize adaptive, String networkType) {
+        if (!adaptive.hasBatchSize(networkType)) {
+            Long batchSize = dbHelper.getLongValue(UPLOAD_BATCH_SIZE_KEY_PREFIX + networkType);
+            adaptive.setBatchSize(
+                networkType, batchSize == null ? eventUploadMaxBatchSize : batchSize
+            );
+        }
+        return adaptive.getBatchSize(networkType);
+    }
+
+    private void finishUpload(final EventBatch batch, final boolean success,
+                              final boolean retryWithBackoff) {
+        logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                onUploadFinished(batch, success, retryWithBackoff);
+            }
+        });
+    }
+
     /**
-     * Internal method to merge unsent events and identifies into a single array by sequence number.
-     *
-     * @param events    the events
-     * @param identifys the identifys
-     * @param numEvents the num events
-     * @return the merged array, max event id, and max identify id
-     * @throws JSONException the json exception
+     * Records the outcome of one batch, removes the events of the acknowledged batches that
+     * are not preceded by an unacknowledged one, and once no batch is in flight anymore
+     * removes the acknowledged batches left behind a failed one, releases the uploader and
+     * decides whether to keep uploading.
+     * <b>Note: </b> always call this on logThread
      */
-    protected Pair<Pair<Long,Long>, JSONArray> mergeEventsAndIdentifys(List<JSONObject> events,
-                            List<JSONObject> identifys, long numEvents) throws JSONException {
-        JSONArray merged = new JSONArray();
-        long maxEventId = -1;
-        long maxIdentifyId = -1;
+    private void onUploadFinished(EventBatch batch, boolean success, boolean retryWithBackoff) {
+        batch.acked = success;
+        batch.failed = !success;
+        uploadFailed |= !success;
+        uploadRetryWithBackoff |= retryWithBackoff;
+        if (!success && !retryWithBackoff && batch.retryable) {
+            uploadRetryable = true;
+            uploadRetryAfterMillis = Math.max(uploadRetryAfterMillis, batch.retryAfterMillis);
+        }
 
-        while (merged.length() < numEvents) {
-            boolean noEvents = events.isEmpty();
-            boolean noIdentifys = identifys.isEmpty();
-
-            // case 0: no events or identifys, nothing to grab
-            // this case should never happen, as it means there are less identifys and events
-            // than expected
-            if (noEvents && noIdentifys) {
-                logger.w(TAG, String.format(
-                    "mergeEventsAndIdentifys: number of events and identifys " +
-                    "less than expected by %d", numEvents - merged.length())
-                );
-                break;
+        AdaptiveBatchSize adaptive = adaptiveBatchSize;
+        if (adaptive != null && batch.networkType != null) {
+            boolean changed = success
+                ? adaptive.onSuccess(batch.networkType, batch.size(), batch.latencyMillis)
+                : batch.shrinkBatchSize && adaptive.onFailure(batch.networkType);
+            if (changed) {
+                writeMetadata(UPLOAD_BATCH_SIZE_KEY_PREFIX + batch.networkType,
+                        adaptive.getBatchSize(batch.networkType));
+            }
+        }
 
-            // case 1: no identifys, grab from events
-            } else if (noIdentifys) {
-                JSONObject event = events.remove(0);
-                maxEventId = event.getLong("event_id");
-                merged.put(event);
+        if (retryWithBackoff && batch == getFirstUnackedBatch()) {
+            shrinkBackoffBatchSize(batch);
+        }
 
-            // case 2: no events, grab from identifys
-            } else if (noEvents) {
-                JSONObject identify = identifys.remove(0);
-                maxIdentifyId = identify.getLong("event_id");
-                merged.put(identify);
+        long maxEventId = -1;
+        long maxIdentifyId = -1;
+        while (!inFlightBatches.isEmpty() && inFlightBatches.get(0).acked) {
+            EventBatch acked = inFlightBatches.remove(0);
+            maxEventId = Math.max(maxEventId, acked.maxEventId);
+            maxIdentifyId = Math.max(maxIdentifyId, acked.maxIdentifyId);
+        }
+        if (maxEventId >= 0 || maxIdentifyId >= 0) {
+            // metadata written behind is recovered from the queued rows, which are about to go
+            persistMetadata();
+        }
+        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
+        if (maxIdentifyId >= 0) dbHelper.removeIdentifys(maxIdentifyId);
+
+        for (EventBatch inFlight : inFlightBatches) {
+            if (!inFlight.acked && !inFlight.failed) {
+                // keep the pipeline full unless a batch failed
+                if (!uploadFailed) {
+                    fillUploadPipeline(backoffUpload);
+                }
+                return;
+            }
+        }
 
-            // case 3: need to compare sequence numbers
-            } else {
-                // events logged before v2.1.0 won't have a sequence number, put those first
-                if (!events.get(0).has("sequence_number") ||
-                        events.get(0).getLong("sequence_number") <
-                        identifys.get(0).getLong("sequence_number")) {
-                    JSONObject event = events.remove(0);
-                    maxEventId = event.getLong("event_id");
-                    merged.put(event);
-                } else {
-                    JSONObject identify = identifys.remove(0);
-                    maxIdentifyId = identify.getLong("event_id");
-                    merged.put(identify);
+        // every batch has finished, the acked batches after a failed one are removed on their
+        // own, so the next upload starts at the failed batch without sending them again
+        boolean persisted = false;
+        for (EventBatch finished : inFlightBatches) {
+            if (!finished.acked) {
+                continue;
+            }
+            if (!persisted) {
+                persistMetadata();
+                persisted = true;
+            }
+            if (finished.maxEventId >= 0) {
+                dbHelper.removeEvents(finished.afterEventId, finished.maxEventId);
+            }
+            if (finished.maxIdentifyId >= 0) {
+                dbHelper.removeIdentifys(finished.afterIdentifyId, finished.maxIdentifyId);
+            }
+        }
+        inFlightBatches.clear();
+        uploadingCurrently.set(false);
+        if (uploadRetryWithBackoff) {
+            uploadRetryWithBackoff = false;
+            updateServer(true);
+            return;
+        } else if (uploadFailed) {
+            if (uploadRetryable && uploadRetryBaseDelayMillis > 0) {
+                backOffUploads(uploadRetryAfterMillis);
+            }
+            return;
+        }
+
+        resetUploadBackoff();
+        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
+            logThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    updateServer(backoffUpload);
                 }
+            });
+        } else {
+            backoffUpload = false;
+            backoffUploadBatchSize = eventUploadMaxBatchSize;
+        }
+    }
+
+    private EventBatch getFirstUnackedBatch() {
+        for (EventBatch inFlight : inFlightBatches) {
+            if (!inFlight.acked) {
+                return inFlight;
             }
         }
+        return null;
+    }
+
+    /**
+     * Halves the backoff batch size after the server rejected a batch as too large. Only called
+     * for the oldest unacknowledged batch, so concurrent 413s shrink the size once and the
+     * batch dropped below is really the one blocking the queue.
+     * <b>Note: </b> always call this on logThread
+     */
+    private void shrinkBackoffBatchSize(EventBatch batch) {
+        // If blocked by one massive event, drop it
+        if (backoffUpload && backoffUploadBatchSize == 1) {
+            persistMetadata();
+            if (batch.maxEventId >= 0) dbHelper.removeEvent(batch.maxEventId);
+            if (batch.maxIdentifyId >= 0) dbHelper.removeIdentify(batch.maxIdentifyId);
+            // maybe we want to reset backoffUploadBatchSize after dropping massive event
+        }
 
-        return new Pair<Pair<Long, Long>, JSONArray>(new Pair<Long,Long>(maxEventId, maxIdentifyId), merged);
+        backoffUpload = true;
+        int numEvents = Math.min((int)dbHelper.getEventCount(), backoffUploadBatchSize);
+        backoffUploadBatchSize = (int)Math.ceil(numEvents / 2.0);
     }
 
     /**
      * Internal method to generate the event upload post request.
      *
-     * @param client        the client
-     * @param events        the events
-     * @param maxEventId    the max event id
-     * @param maxIdentifyId the max identify id
+     * @param client the client
+     * @param batch  the events, read from the database without parsing
      */
-    protected void makeEventUploadPostRequest(OkHttpClient client, String events, final long maxEventId, final long maxIdentifyId) {
-        String apiVersionString = "" + Constants.API_VERSION;
-        String timestampString = "" + getCurrentTimeMillis();
-
-        String checksumString = "";
-        try {
-            String preimage = apiVersionString + apiKey + events + timestampString;
-
-            // MessageDigest.getInstance(String) is not threadsafe on Android.
-            // See https://code.google.com/p/android/issues/detail?id=37937
-            // Use MD5 implementation from http://org.rodage.com/pub/java/security/MD5.java
-            // This implementation does not throw NoSuchAlgorithm exceptions.
-            MessageDigest messageDigest = new MD5();
-            checksumString = bytesToHexString(messageDigest.digest(preimage.getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException e) {
-            // According to
-            // http://stackoverflow.com/questions/5049524/is-java-utf-8-charset-exception-possible,
-            // this will never be thrown
-            logger.e(TAG, e.toString());
+    protected void makeEventUploadPostRequest(OkHttpClient client, final EventBatch batch) {
+        // the checksum is computed while the body is written, before any compression
+        RequestBody body = newEventUploadBody(batch, jsonUploadBody);
+        if (uploadCompression) {
+            body = new GzipRequestBody(body);
         }
 
-        FormBody body = new FormBody.Builder()
-            .add("v", apiVersionString)
-            .add("client", apiKey)
-            .add("e", events)
-            .add("upload_time", timestampString)
-            .add("checksum", checksumString)
-            .build();
-
         Request request;
         try {
              Request.Builder builder = new Request.Builder()
@@ -1977,73 +3058,48 @@ public class DatadiveClient {
                 builder.addHeader("Authorization", "Bearer " + bearerToken);
              }
 
+             if (uploadCompression) {
+                builder.addHeader("Content-Encoding", "gzip");
+             }
+
              request = builder.build();
         } catch (IllegalArgumentException e) {
             logger.e(TAG, e.toString());
-            uploadingCurrently.set(false);
+            batch.retryable = false;
+            finishUpload(batch, false, false);
             return;
         }
 
-        boolean uploadSuccess = false;
+        // this upload wakes the radio, uploads other instances held back can share it
+        RadioActivity.notifyActive();
 
-        try {
-            Response response = client.newCall(request).execute();
-            String stringResponse = response.body().string();
-            if (stringResponse.equals("success")) {
-                uploadSuccess = true;
-                logThread.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (maxEventId >= 0) dbHelper.removeEvents(maxEventId);
-                        if (maxIdentifyId >= 0) dbHelper.removeIdentifys(maxIdentifyId);
-                        uploadingCurrently.set(false);
-                        if (dbHelper.getTotalEventCount() > eventUploadThreshold) {
-                            logThread.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    updateServer(backoffUpload);
-                                }
-                            });
-                        }
-                        else {
-                            backoffUpload = false;
-                            backoffUploadBatchSize = eventUploadMaxBatchSize;
-                        }
+        if (maxConcurrentUploads > 1) {
+            // several batches in flight, let the OkHttp dispatcher run the calls
+            batch.sentAtMillis = SystemClock.elapsedRealtime();
+            client.newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    failUpload(batch, e);
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try {
+                        handleUploadResponse(batch, response);
+                    } catch (Exception e) {
+                        logger.e(TAG, "Exception:", e);
+                        failUpload(batch, e);
                     }
-                });
-            } else if (stringResponse.equals("invalid_api_key")) {
-                logger.e(TAG, "Invalid API key, make sure your API key is correct in initialize()");
-            } else if (stringResponse.equals("bad_checksum")) {
-                logger.w(TAG,
-                        "Bad checksum, post request was mangled in transit, will attempt to reupload later");
-            } else if (stringResponse.equals("request_db_write_failed")) {
-                logger.w(TAG,
-                        "Couldn't write to request database on server, will attempt to reupload later");
-            } else if (response.code() == 413) {
-
-                // If blocked by one massive event, drop it
-                if (backoffUpload && backoffUploadBatchSize == 1) {
-                    if (maxEventId >= 0) dbHelper.removeEvent(maxEventId);
-                    if (maxIdentifyId >= 0) dbHelper.removeIdentify(maxIdentifyId);
-                    // maybe we want to reset backoffUploadBatchSize after dropping massive event
                 }
+            });
+            return;
+        }
 
-                // Server complained about length of request, backoff and try again
-                backoffUpload = true;
-                int numEvents = Math.min((int)dbHelper.getEventCount(), backoffUploadBatchSize);
-                backoffUploadBatchSize = (int)Math.ceil(numEvents / 2.0);
-                logger.w(TAG, "Request too large, will decrease size and attempt to reupload");
-                logThread.post(new Runnable() {
-                   @Override
-                    public void run() {
-                       uploadingCurrently.set(false);
-                       updateServer(true);
-                   }
-                });
-            } else {
-                logger.w(TAG, "Upload failed, " + stringResponse
-                        + ", will attempt to reupload later");
-            }
+        try {
+            batch.sentAtMillis = SystemClock.elapsedRealtime();
+            Response response = client.newCall(request).execute();
+            handleUploadResponse(batch, response);
+            return;
         } catch (java.net.ConnectException e) {
             // logger.w(TAG,
             // "No internet connection found, unable to upload events");
@@ -2052,6 +3108,10 @@ public class DatadiveClient {
             // logger.w(TAG,
             // "No internet connection found, unable to upload events");
             lastError = e;
+        } catch (SocketTimeoutException e) {
+            logger.e(TAG, e.toString());
+            lastError = e;
+            batch.shrinkBatchSize = true;
         } catch (IOException e) {
             logger.e(TAG, e.toString());
             lastError = e;
@@ -2064,11 +3124,65 @@ public class DatadiveClient {
             logger.e(TAG, "Exception:", e);
             lastError = e;
         }
+        finishUpload(batch, false, false);
+    }
 
-        if (!uploadSuccess) {
-            uploadingCurrently.set(false);
-        }
+    /**
+     * The upload payload for a batch of this instance.
+     */
+    EventUploadBody newEventUploadBody(EventBatch batch, boolean json) {
+        String apiVersionString = "" + (batch.envelope ?
+                Constants.ENVELOPE_API_VERSION : Constants.API_VERSION);
+        String timestampString = "" + getCurrentTimeMillis();
+        return new EventUploadBody(apiVersionString, apiKey, batch, timestampString, json);
+    }
+
+    /**
+     * Reports a batch whose request failed without a server response to logThread.
+     */
+    void failUpload(EventBatch batch, Throwable e) {
+        lastError = e;
+        batch.shrinkBatchSize = e instanceof SocketTimeoutException;
+        finishUpload(batch, false, false);
+    }
+
+    private void handleUploadResponse(EventBatch batch, Response response) throws IOException {
+        String stringResponse = response.body().string();
+        handleUploadResult(batch, response.code(), response.header("Retry-After"), stringResponse);
+    }
 
+    /**
+     * Handles the server response to one batch and reports the outcome to logThread.
+     */
+    void handleUploadResult(EventBatch batch, int code, String retryAfter, String stringResponse) {
+        batch.latencyMillis = SystemClock.elapsedRealtime() - batch.sentAtMillis;
+        if ((code == 429 || code == 503) && retryAfter != null) {
+            batch.retryAfterMillis = Utils.parseRetryAfterMillis(retryAfter, getCurrentTimeMillis());
+        }
+        if (stringResponse.equals("success")) {
+            finishUpload(batch, true, false);
+            return;
+        } else if (stringResponse.equals("invalid_api_key")) {
+            logger.e(TAG, "Invalid API key, make sure your API key is correct in initialize()");
+            batch.retryable = false;
+        } else if (stringResponse.equals("bad_checksum")) {
+            logger.w(TAG,
+                    "Bad checksum, post request was mangled in transit, will attempt to reupload later");
+        } else if (stringResponse.equals("request_db_write_failed")) {
+            logger.w(TAG,
+                    "Couldn't write to request database on server, will attempt to reupload later");
+        } else if (code == 413) {
+            // Server complained about length of request, backoff and try again. The batch size
+            // is decreased on logThread, see shrinkBackoffBatchSize
+            logger.w(TAG, "Request too large, will decrease size and attempt to reupload");
+            batch.shrinkBatchSize = true;
+            finishUpload(batch, false, true);
+            return;
+        } else {
+            logger.w(TAG, "Upload failed, " + stringResponse
+                    + ", will attempt to reupload later");
+        }
+        finishUpload(batch, false, false);
     }
 
     /**
@@ -2139,10 +3253,17 @@ public class DatadiveClient {
     }
 
     protected void runOnLogThread(Runnable r) {
-        if (Thread.currentThread() != logThread) {
-            logThread.post(r);
-        } else {
+        if (Thread.currentThread() == logThread) {
             r.run();
+            return;
+        }
+
+        EventRingBuffer ring = eventRingBuffer;
+        if (ring == null) {
+            logThread.post(r);
+        } else if (!ring.offerTask(r)) {
+            // the ring buffer is full, this task runs after the events already in it
+            logThread.post(ring.newOverflowTask(r));
         }
     }
 
@@ -2359,6 +3480,20 @@ public class DatadiveClient {
         return true;
     }
 
+    /**
+     * Process-wide http client, shared by all instances so they reuse one connection pool,
+     * dispatcher and TLS session cache. Instances that need their own configuration should
+     * derive it with {@link OkHttpClient#newBuilder()}, which keeps the pool and dispatcher.
+     *
+     * @return the shared OkHttpClient
+     */
+    static synchronized OkHttpClient getSharedHttpClient() {
+        if (sharedHttpClient == null) {
+            sharedHttpClient = new OkHttpClient();
+        }
+        return sharedHttpClient;
+    }
+
     private static void migrateLongValue(SharedPreferences prefs, String prefKey, long defValue, DatabaseHelper dbHelper, String dbKey) {
         Long value = dbHelper.getLongValue(dbKey);
         if (value != null) { // If value already exists, it doesn't need to migrate.
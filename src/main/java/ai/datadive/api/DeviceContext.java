@@ -0,0 +1,104 @@
+package ai.datadive.api;
+
+import android.os.Build;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The device fields and library info of an event. They are the same for every event, so they
+ * are serialized once, as the members of a JSON object without the braces, and that fragment
+ * is spliced into each serialized event. Rebuilt whenever the tracking options, library or
+ * platform change.
+ */
+class DeviceContext {
+    private static final String TAG = DeviceContext.class.getName();
+    private static final DatadiveLog logger = DatadiveLog.getLogger();
+
+    private final String fragment;
+
+    private DeviceContext(String fragment) {
+        this.fragment = fragment;
+    }
+
+    static DeviceContext build(DeviceInfo deviceInfo, TrackingOptions options, String platform,
+                               String libraryName, String libraryVersion) {
+        JSONObject context = new JSONObject();
+        try {
+            if (options.shouldTrackVersionName()) {
+                context.put("version_name", orNull(deviceInfo.getVersionName()));
+            }
+            if (options.shouldTrackOsName()) {
+                context.put("os_name", orNull(deviceInfo.getOsName()));
+            }
+            if (options.shouldTrackOsVersion()) {
+                context.put("os_version", orNull(deviceInfo.getOsVersion()));
+            }
+            if (options.shouldTrackApiLevel()) {
+                context.put("api_level", Build.VERSION.SDK_INT);
+            }
+            if (options.shouldTrackDeviceBrand()) {
+                context.put("device_brand", orNull(deviceInfo.getBrand()));
+            }
+            if (options.shouldTrackDeviceManufacturer()) {
+                context.put("device_manufacturer", orNull(deviceInfo.getManufacturer()));
+            }
+            if (options.shouldTrackDeviceModel()) {
+                context.put("device_model", orNull(deviceInfo.getModel()));
+            }
+            if (options.shouldTrackCarrier()) {
+                context.put("carrier", orNull(deviceInfo.getCarrier()));
+            }
+            if (options.shouldTrackCountry()) {
+                context.put("country", orNull(deviceInfo.getCountry()));
+            }
+            if (options.shouldTrackLanguage()) {
+                context.put("language", orNull(deviceInfo.getLanguage()));
+            }
+            if (options.shouldTrackPlatform()) {
+                context.put("platform", platform);
+            }
+
+            JSONObject library = new JSONObject();
+            library.put("name", libraryName == null ? Constants.LIBRARY_UNKNOWN : libraryName);
+            library.put("version", libraryVersion == null ? Constants.VERSION_UNKNOWN : libraryVersion);
+            context.put("library", library);
+        } catch (JSONException e) {
+            logger.e(TAG, "Failed to serialize device context: " + e.toString());
+        }
+
+        return new DeviceContext(getMembers(context));
+    }
+
+    /**
+     * @return the serialized members of the object, without the braces
+     */
+    static String getMembers(JSONObject object) {
+        String json = object.toString();
+        return json.substring(1, json.length() - 1);
+    }
+
+    private static Object orNull(Object value) {
+        return value == null ? JSONObject.NULL : value;
+    }
+
+    String getFragment() {
+        return fragment;
+    }
+
+    /**
+     * @param event a serialized JSON object without any of the device context fields
+     * @return the event with the device context fields first
+     */
+    String splice(String event) {
+        if (fragment.isEmpty()) {
+            return event;
+        }
+        StringBuilder builder = new StringBuilder(fragment.length() + event.length() + 1);
+        builder.append('{').append(fragment);
+        if (event.length() > 2) {
+            builder.append(',');
+        }
+        return builder.append(event, 1, event.length()).toString();
+    }
+}
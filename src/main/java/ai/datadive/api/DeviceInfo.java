@@ -9,6 +9,7 @@ import android.location.Geocoder;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.provider.Settings.Secure;
 import android.telephony.TelephonyManager;
 
@@ -32,6 +33,11 @@ public class DeviceInfo {
 
     private boolean locationListening = true;
 
+    // a granted permission can't be revoked without killing the process, so only that is cached
+    private volatile boolean locationPermissionGranted = false;
+    private volatile Location locationSnapshot;
+    private volatile long locationSnapshotTime = -1;
+
     private Context context;
 
     private CachedInfo cachedInfo;
@@ -334,8 +340,11 @@ public class DeviceInfo {
             return null;
         }
 
-        if (!Utils.checkLocationPermissionAllowed(context)) {
-            return null;
+        if (!locationPermissionGranted) {
+            locationPermissionGranted = Utils.checkLocationPermissionAllowed(context);
+            if (!locationPermissionGranted) {
+                return null;
+            }
         }
 
         LocationManager locationManager = (LocationManager) context
@@ -387,12 +396,41 @@ public class DeviceInfo {
         return bestLocation;
     }
 
+    /**
+     * The most recent location as of the last {@link #refreshLocationSnapshot()}, without any
+     * LocationManager calls.
+     *
+     * @return the location snapshot, or null if there was none
+     */
+    public Location getLocationSnapshot() {
+        return locationSnapshot;
+    }
+
+    /**
+     * @param ttlMillis how long a snapshot stays fresh
+     * @return whether the snapshot is missing or older than ttlMillis
+     */
+    public boolean isLocationSnapshotStale(long ttlMillis) {
+        long snapshotTime = locationSnapshotTime;
+        return snapshotTime < 0 || SystemClock.elapsedRealtime() - snapshotTime >= ttlMillis;
+    }
+
+    /**
+     * Queries the LocationManager for the most recent location and keeps it as the snapshot.
+     */
+    public void refreshLocationSnapshot() {
+        locationSnapshot = getMostRecentLocation();
+        locationSnapshotTime = SystemClock.elapsedRealtime();
+    }
+
     public boolean isLocationListening() {
         return locationListening;
     }
 
     public void setLocationListening(boolean locationListening) {
         this.locationListening = locationListening;
+        locationSnapshot = null;
+        locationSnapshotTime = -1;
     }
 
     // @VisibleForTesting
@@ -0,0 +1,197 @@
+package ai.datadive.api;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okio.Buffer;
+import okio.BufferedSink;
+
+/**
+ * A batch of queued events and identifys read for upload. Events are kept as the strings stored
+ * in the database and the row id of each is spliced in as "event_id" while the batch is written,
+ * so nothing is parsed or re-serialized on the upload path.
+ */
+class EventBatch {
+    private static final String EVENT_ID_PREFIX = "{\"event_id\":";
+    // the last member hoisted into the envelope's common members
+    private static final String COMMON_MEMBERS_END = "\"device_id\":";
+
+    private final List<String> events = new ArrayList<String>();
+    private final List<Long> eventIds = new ArrayList<Long>();
+    long maxEventId = -1;
+    long maxIdentifyId = -1;
+    // the ids the batch was read after, so it covers the rows after them up to the max ids
+    long afterEventId = -1;
+    long afterIdentifyId = -1;
+    // size of the JSON array written by writeTo in UTF-8 bytes, the brackets minus one comma
+    long byteSize = 1;
+    // when set, the batch is written as an envelope with the shared members hoisted out
+    boolean envelope = false;
+    // upload state, only accessed on logThread
+    boolean acked = false;
+    boolean failed = false;
+    // set on httpThread before the outcome is posted to logThread
+    String networkType;
+    long sentAtMillis = -1;
+    long latencyMillis = -1;
+    boolean shrinkBatchSize = false;
+    boolean retryable = true;
+    long retryAfterMillis = -1;
+
+    void add(String event, long eventId) {
+        add(event, eventId, Utils.utf8Length(event));
+    }
+
+    void add(String event, long eventId, long eventBytes) {
+        events.add(event);
+        eventIds.add(eventId);
+        byteSize += getSerializedSize(eventBytes, eventId);
+    }
+
+    /**
+     * Bytes a stored event of eventBytes adds to the array once its id is spliced in,
+     * including the separating comma.
+     */
+    static long getSerializedSize(long eventBytes, long eventId) {
+        return eventBytes + EVENT_ID_PREFIX.length() + String.valueOf(eventId).length() + 1;
+    }
+
+    int size() {
+        return events.size();
+    }
+
+    boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    /**
+     * Writes the batch as a UTF-8 JSON array, or if envelope is set as an envelope
+     * {"common":{...},"events":[...]}. Common holds the leading members of the first event up
+     * to its device_id: the device context, user_id and device_id. They are removed from every
+     * event that starts with them, so only events logged for another user or device, or with
+     * other tracking options, are written complete. Events without device_id had the common
+     * members removed.
+     */
+    void writeTo(BufferedSink sink) throws IOException {
+        if (!envelope) {
+            writeEvents(sink, "");
+            return;
+        }
+        String common = events.isEmpty() ? "" : getCommonMembers(events.get(0));
+        sink.writeUtf8("{\"common\":{");
+        sink.writeUtf8(common);
+        sink.writeUtf8("},\"events\":");
+        writeEvents(sink, common);
+        sink.writeByte('}');
+    }
+
+    private void writeEvents(BufferedSink sink, String common) throws IOException {
+        sink.writeByte('[');
+        for (int i = 0; i < events.size(); i++) {
+            String event = events.get(i);
+            if (i > 0) {
+                sink.writeByte(',');
+            }
+            sink.writeUtf8(EVENT_ID_PREFIX);
+            sink.writeDecimalLong(eventIds.get(i));
+            if (startsWithMembers(event, common)) {
+                // the rest starts with the comma before the next member, or the closing brace
+                sink.writeUtf8(event, 1 + common.length(), event.length());
+                continue;
+            }
+            if (!isEmptyObject(event)) {
+                sink.writeByte(',');
+            }
+            // everything after the opening brace of the stored object
+            sink.writeUtf8(event, 1, event.length());
+        }
+        sink.writeByte(']');
+    }
+
+    // whether the event starts with all of the members, ending at a member boundary
+    private static boolean startsWithMembers(String event, String members) {
+        int length = members.length();
+        if (length == 0 || event.length() < length + 2 || !event.startsWith(members, 1)) {
+            return false;
+        }
+        char next = event.charAt(length + 1);
+        return next == ',' || next == '}';
+    }
+
+    /**
+     * @return the leading members of a stored event up to and including device_id, without
+     * the braces, or an empty string if it has no top level device_id
+     */
+    static String getCommonMembers(String event) {
+        int start = 1;
+        while (start < event.length() - 1) {
+            int end = getMemberEnd(event, start);
+            if (end < 0) {
+                return "";
+            }
+            if (event.startsWith(COMMON_MEMBERS_END, start)) {
+                return event.substring(1, end);
+            }
+            if (event.charAt(end) != ',') {
+                return "";
+            }
+            start = end + 1;
+        }
+        return "";
+    }
+
+    // index of the comma or closing brace after the member starting at start, -1 if malformed
+    private static int getMemberEnd(String event, int start) {
+        int depth = 0;
+        boolean inString = false;
+        for (int i = start; i < event.length(); i++) {
+            char c = event.charAt(i);
+            if (inString) {
+                if (c == '\\') {
+                    i++;
+                } else if (c == '"') {
+                    inString = false;
+                }
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    return i;
+                }
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // stored events are JSONObject.toString() output, anything else would corrupt the array
+    static boolean isObject(String event) {
+        return !Utils.isEmptyString(event) && event.length() >= 2 && event.charAt(0) == '{'
+                && event.charAt(event.length() - 1) == '}';
+    }
+
+    private static boolean isEmptyObject(String event) {
+        for (int i = 1; i < event.length() - 1; i++) {
+            if (!Character.isWhitespace(event.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        Buffer buffer = new Buffer();
+        try {
+            writeTo(buffer);
+        } catch (IOException e) {
+            // writing to a Buffer does not throw
+        }
+        return buffer.readUtf8();
+    }
+}
@@ -0,0 +1,230 @@
+package ai.datadive.api;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded multi-producer single-consumer queue of pre-allocated slots between the threads
+ * calling logEvent and logThread. Producers claim a slot with one CAS and publish it through the
+ * slot's sequence number, so handing over an event allocates nothing and takes no lock. The
+ * consumer is woken only when the buffer goes from drained to non-empty, and then drains every
+ * published slot in one go. Slots can also carry a Runnable, so other logThread work submitted
+ * by the callers stays in order with their events.
+ *
+ * When the buffer is full it overflows: the callers wrap their work with
+ * {@link #newOverflowTask(Runnable)} and post it to the Handler instead. While any overflow task
+ * has not run yet, offers fail, so a thread's later submissions can't overtake its overflow
+ * task. An overflow task first runs every slot claimed before it was created, waiting for slots
+ * that are claimed but not published yet, so it can't overtake the thread's earlier submissions
+ * either.
+ */
+class EventRingBuffer {
+
+    interface Consumer {
+        void onEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
+                     JSONObject userProperties, JSONObject groups, JSONObject groupProperties,
+                     long timestamp, boolean outOfSession);
+
+        /**
+         * Called on a producer thread when published slots are waiting, the consumer should
+         * call {@link #drain()} on its thread, for example by posting {@link #drainTask}.
+         */
+        void wakeUp(EventRingBuffer buffer);
+    }
+
+    private static class Slot {
+        // slot index + n * capacity: free for the producer at that position, or published for
+        // the consumer at that position - 1
+        volatile long sequence;
+        Runnable task;
+        String eventType;
+        JSONObject eventProperties;
+        JSONObject apiProperties;
+        JSONObject userProperties;
+        JSONObject groups;
+        JSONObject groupProperties;
+        long timestamp;
+        boolean outOfSession;
+    }
+
+    private final Slot[] slots;
+    private final int mask;
+    private final Consumer consumer;
+    private final AtomicLong tail = new AtomicLong(0);
+    // only accessed by the consumer
+    private long head = 0;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    // overflow tasks created and not run yet
+    private final AtomicInteger overflowTasks = new AtomicInteger(0);
+
+    final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param capacity number of slots, rounded up to a power of two
+     */
+    EventRingBuffer(int capacity, Consumer consumer) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        this.mask = size - 1;
+        this.consumer = consumer;
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * @return false if the buffer is full or overflowing, the event was not taken and should go
+     * in an overflow task
+     */
+    boolean offerEvent(String eventType, JSONObject eventProperties, JSONObject apiProperties,
+                       JSONObject userProperties, JSONObject groups, JSONObject groupProperties,
+                       long timestamp, boolean outOfSession) {
+        long position = claim();
+        if (position < 0) {
+            return false;
+        }
+        Slot slot = slots[(int) position & mask];
+        slot.eventType = eventType;
+        slot.eventProperties = eventProperties;
+        slot.apiProperties = apiProperties;
+        slot.userProperties = userProperties;
+        slot.groups = groups;
+        slot.groupProperties = groupProperties;
+        slot.timestamp = timestamp;
+        slot.outOfSession = outOfSession;
+        publish(slot, position);
+        return true;
+    }
+
+    /**
+     * @return false if the buffer is full or overflowing, the task was not taken and should go
+     * in an overflow task
+     */
+    boolean offerTask(Runnable task) {
+        long position = claim();
+        if (position < 0) {
+            return false;
+        }
+        Slot slot = slots[(int) position & mask];
+        slot.task = task;
+        publish(slot, position);
+        return true;
+    }
+
+    private long claim() {
+        while (overflowTasks.get() == 0) {
+            long position = tail.get();
+            long diff = slots[(int) position & mask].sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return position;
+                }
+            } else if (diff < 0) {
+                // the consumer hasn't freed the slot from the previous lap yet
+                return -1;
+            }
+            // otherwise another producer claimed the position first
+        }
+        return -1;
+    }
+
+    private void publish(Slot slot, long position) {
+        slot.sequence = position + 1;
+        if (!drainScheduled.get() && drainScheduled.compareAndSet(false, true)) {
+            consumer.wakeUp(this);
+        }
+    }
+
+    /**
+     * Wraps work that could not be offered, to be posted to the consumer thread instead. Offers
+     * fail until the task has run.
+     */
+    Runnable newOverflowTask(final Runnable r) {
+        overflowTasks.incrementAndGet();
+        // every slot the calling thread claimed before is below this position
+        final long position = tail.get();
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drainTo(position);
+                    r.run();
+                } finally {
+                    overflowTasks.decrementAndGet();
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs every published slot in order. <b>Note: </b> always call this on the consumer thread
+     */
+    void drain() {
+        // slots published from now on need another wake up
+        drainScheduled.set(false);
+        while (runNext()) {
+            // keep running
+        }
+    }
+
+    /**
+     * Runs the slots before position in order, waiting for the producers that claimed one of
+     * them to publish it. <b>Note: </b> always call this on the consumer thread
+     */
+    private void drainTo(long position) {
+        while (head < position) {
+            if (!runNext()) {
+                // a producer is between claim and publish, which takes no locks
+                Thread.yield();
+            }
+        }
+    }
+
+    // runs the slot at head if it is published
+    private boolean runNext() {
+        Slot slot = slots[(int) head & mask];
+        if (slot.sequence != head + 1) {
+            return false;
+        }
+        Runnable task = slot.task;
+        String eventType = slot.eventType;
+        JSONObject eventProperties = slot.eventProperties;
+        JSONObject apiProperties = slot.apiProperties;
+        JSONObject userProperties = slot.userProperties;
+        JSONObject groups = slot.groups;
+        JSONObject groupProperties = slot.groupProperties;
+        long timestamp = slot.timestamp;
+        boolean outOfSession = slot.outOfSession;
+        slot.task = null;
+        slot.eventType = null;
+        slot.eventProperties = null;
+        slot.apiProperties = null;
+        slot.userProperties = null;
+        slot.groups = null;
+        slot.groupProperties = null;
+        // free for the producer one lap later
+        slot.sequence = head + slots.length;
+        head++;
+
+        if (task != null) {
+            task.run();
+        } else {
+            consumer.onEvent(eventType, eventProperties, apiProperties, userProperties,
+                    groups, groupProperties, timestamp, outOfSession);
+        }
+        return true;
+    }
+}
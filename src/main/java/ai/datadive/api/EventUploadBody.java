@@ -0,0 +1,304 @@
+package ai.datadive.api;
+
+import ai.datadive.security.MD5;
+
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
+
+/**
+ * Upload request body with the fields v, client, e, upload_time and checksum, either form
+ * encoded like the FormBody it replaces or as a JSON object with the events array embedded
+ * as is. The events JSON is streamed into the request instead of being held as one String.
+ * The checksum is the MD5 of v + client + e + upload_time, and since it is the last field it
+ * is computed while the other fields are written, so the preimage is never held in memory
+ * either. The length is counted up front, so like FormBody the request is sent with a
+ * Content-Length header rather than chunked.
+ */
+class EventUploadBody extends RequestBody {
+    private static final MediaType FORM_CONTENT_TYPE =
+            MediaType.get("application/x-www-form-urlencoded");
+    private static final MediaType JSON_CONTENT_TYPE =
+            MediaType.get("application/json; charset=utf-8");
+    private static final byte[] HEX_DIGITS = {
+        '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'
+    };
+    // hex digits of the MD5
+    private static final int CHECKSUM_LENGTH = 32;
+
+    private final String apiVersion;
+    private final String apiKey;
+    private final EventBatch events;
+    private final String uploadTime;
+    private final boolean json;
+    private long contentLength = -1;
+
+    EventUploadBody(String apiVersion, String apiKey, EventBatch events, String uploadTime,
+                    boolean json) {
+        this.apiVersion = apiVersion;
+        this.apiKey = apiKey;
+        this.events = events;
+        this.uploadTime = uploadTime;
+        this.json = json;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return json ? JSON_CONTENT_TYPE : FORM_CONTENT_TYPE;
+    }
+
+    /**
+     * Counted without computing the checksum, which is always 32 hex digits. The values are
+     * written once into a sink that only counts, as form encoded bytes for a form body, since
+     * the encoded length depends on every byte of the events.
+     */
+    @Override
+    public long contentLength() throws IOException {
+        if (contentLength >= 0) {
+            return contentLength;
+        }
+        CountingSink counter = new CountingSink(!json);
+        BufferedSink values = Okio.buffer(counter);
+        if (json) {
+            events.writeTo(values);
+            values.close();
+            contentLength = Utils.utf8Length("{\"v\":" + JSONObject.quote(apiVersion)
+                    + ",\"client\":" + JSONObject.quote(apiKey) + ",\"e\":")
+                    + counter.byteCount
+                    + Utils.utf8Length(",\"upload_time\":" + JSONObject.quote(uploadTime)
+                    + ",\"checksum\":\"\"}") + CHECKSUM_LENGTH;
+        } else {
+            values.writeUtf8(apiVersion);
+            values.writeUtf8(apiKey);
+            events.writeTo(values);
+            values.writeUtf8(uploadTime);
+            values.close();
+            contentLength = "v=&client=&e=&upload_time=&checksum=".length()
+                    + counter.byteCount + CHECKSUM_LENGTH;
+        }
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        // MessageDigest.getInstance(String) is not threadsafe on Android.
+        // See https://code.google.com/p/android/issues/detail?id=37937
+        // Use MD5 implementation from http://org.rodage.com/pub/java/security/MD5.java
+        // A new digest per write, the body is written again if the request is retried.
+        MD5 checksum = new MD5();
+        if (json) {
+            writeJson(sink, checksum);
+        } else {
+            writeForm(sink, checksum);
+        }
+    }
+
+    private void writeForm(BufferedSink sink, MD5 checksum) throws IOException {
+        // separators go straight to the sink, values through the digest and the encoder
+        BufferedSink values = Okio.buffer(new DigestingSink(checksum, new FormEncodingSink(sink)));
+        sink.writeUtf8("v=");
+        values.writeUtf8(apiVersion).emit();
+        sink.writeUtf8("&client=");
+        values.writeUtf8(apiKey).emit();
+        sink.writeUtf8("&e=");
+        events.writeTo(values);
+        values.emit();
+        sink.writeUtf8("&upload_time=");
+        values.writeUtf8(uploadTime).emit();
+        sink.writeUtf8("&checksum=");
+        writeHex(sink, checksum.digest());
+    }
+
+    private void writeJson(BufferedSink sink, MD5 checksum) throws IOException {
+        // the events array is already JSON and goes in unescaped, only through the digest
+        BufferedSink digested = Okio.buffer(new DigestingSink(checksum, sink));
+        sink.writeUtf8("{\"v\":");
+        writeJsonString(sink, checksum, apiVersion);
+        sink.writeUtf8(",\"client\":");
+        writeJsonString(sink, checksum, apiKey);
+        sink.writeUtf8(",\"e\":");
+        events.writeTo(digested);
+        digested.emit();
+        sink.writeUtf8(",\"upload_time\":");
+        writeJsonString(sink, checksum, uploadTime);
+        sink.writeUtf8(",\"checksum\":\"");
+        writeHex(sink, checksum.digest());
+        sink.writeUtf8("\"}");
+    }
+
+    // the digest covers the raw value, the body gets it quoted and escaped
+    private static void writeJsonString(BufferedSink sink, MD5 checksum, String value)
+            throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        checksum.engineUpdate(bytes, 0, bytes.length);
+        sink.writeUtf8(JSONObject.quote(value));
+    }
+
+    private static void writeHex(BufferedSink sink, byte[] bytes) throws IOException {
+        for (byte b : bytes) {
+            sink.writeByte(HEX_DIGITS[(b & 0xff) >> 4]);
+            sink.writeByte(HEX_DIGITS[b & 0xf]);
+        }
+    }
+
+    /**
+     * Counts the bytes written to it, or what they take once form encoded, and discards them.
+     */
+    static class CountingSink implements Sink {
+        private final boolean formEncoded;
+        private final byte[] chunk = new byte[8192];
+        long byteCount = 0;
+
+        CountingSink(boolean formEncoded) {
+            this.formEncoded = formEncoded;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            if (!formEncoded) {
+                source.skip(byteCount);
+                this.byteCount += byteCount;
+                return;
+            }
+            while (byteCount > 0) {
+                int read = source.read(chunk, 0, (int) Math.min(chunk.length, byteCount));
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                for (int i = 0; i < read; i++) {
+                    int b = chunk[i] & 0xff;
+                    // spaces become '+', other reserved bytes %XX
+                    this.byteCount += FormEncodingSink.isUnreserved(b) || b == ' ' ? 1 : 3;
+                }
+                byteCount -= read;
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public Timeout timeout() {
+            return Timeout.NONE;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Passes everything written to it on to the delegate, updating the digest on the way.
+     */
+    static class DigestingSink implements Sink {
+        private final MD5 digest;
+        private final Sink delegate;
+        private final byte[] chunk = new byte[8192];
+        private final Buffer forward = new Buffer();
+
+        DigestingSink(MD5 digest, Sink delegate) {
+            this.digest = digest;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+                int read = source.read(chunk, 0, (int) Math.min(chunk.length, byteCount));
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                digest.engineUpdate(chunk, 0, read);
+                forward.write(chunk, 0, read);
+                delegate.write(forward, read);
+                byteCount -= read;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public Timeout timeout() {
+            return delegate.timeout();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+
+    /**
+     * Percent-encodes everything written to it the way URLEncoder does for form values:
+     * unreserved characters as is, spaces as '+', and every other byte as %XX.
+     */
+    static class FormEncodingSink implements Sink {
+        private static final byte[] HEX_DIGITS = {
+            '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'
+        };
+
+        private final BufferedSink delegate;
+        private final byte[] chunk = new byte[8192];
+
+        FormEncodingSink(BufferedSink delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void write(Buffer source, long byteCount) throws IOException {
+            while (byteCount > 0) {
+                int read = source.read(chunk, 0, (int) Math.min(chunk.length, byteCount));
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                for (int i = 0; i < read; i++) {
+                    int b = chunk[i] & 0xff;
+                    if (isUnreserved(b)) {
+                        delegate.writeByte(b);
+                    } else if (b == ' ') {
+                        delegate.writeByte('+');
+                    } else {
+                        delegate.writeByte('%');
+                        delegate.writeByte(HEX_DIGITS[b >> 4]);
+                        delegate.writeByte(HEX_DIGITS[b & 0xf]);
+                    }
+                }
+                byteCount -= read;
+            }
+        }
+
+        static boolean isUnreserved(int b) {
+            return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                    || b == '-' || b == '_' || b == '.' || b == '*';
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public Timeout timeout() {
+            return delegate.timeout();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // the delegate belongs to the caller
+            flush();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package ai.datadive.api;
+
+import java.io.IOException;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Gzips another request body while it is written. The request must also carry the
+ * Content-Encoding: gzip header. The compressed length is not known up front, so the body is
+ * sent chunked.
+ */
+class GzipRequestBody extends RequestBody {
+    private final RequestBody delegate;
+
+    GzipRequestBody(RequestBody delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return delegate.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+        return -1;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        BufferedSink gzipSink = Okio.buffer(new GzipSink(sink));
+        delegate.writeTo(gzipSink);
+        // writes the gzip trailer
+        gzipSink.close();
+    }
+}
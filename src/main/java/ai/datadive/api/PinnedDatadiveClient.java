@@ -19,7 +19,6 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
-import okhttp3.OkHttpClient;
 import okio.Buffer;
 import okio.ByteString;
 
@@ -218,7 +217,9 @@ public class PinnedDatadiveClient extends DatadiveClient {
                             }
                             X509TrustManager trustManager = (X509TrustManager) trustManagers[0];
 
-                            client.httpClient = new OkHttpClient.Builder().sslSocketFactory(factory, trustManager).build();
+                            // keeps the shared connection pool and dispatcher, only TLS differs
+                            client.httpClient = getSharedHttpClient().newBuilder()
+                                    .sslSocketFactory(factory, trustManager).build();
                         } catch (GeneralSecurityException e) {
                             logger.e(TAG, e.getMessage(), e);
                         } catch (IOException e) {
@@ -0,0 +1,66 @@
+package ai.datadive.api;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Process-wide record of when the cellular radio was last known to be active, and of the
+ * instances holding back uploads until it is. Waking the radio costs seconds of high-power
+ * tail time, so deferred uploads of every instance are sent together as soon as something
+ * else has woken it: app traffic reported through {@link Datadive#notifyNetworkActivity()},
+ * an app foreground transition, or another instance's upload.
+ */
+class RadioActivity {
+    private static final Set<DatadiveClient> deferredClients = new LinkedHashSet<DatadiveClient>();
+    private static long lastActiveMillis = -1;
+
+    private RadioActivity() {
+    }
+
+    /**
+     * Whether the radio was active recently enough to still be in its high-power state.
+     */
+    static synchronized boolean isActive() {
+        return lastActiveMillis >= 0 &&
+                SystemClock.elapsedRealtime() - lastActiveMillis < Constants.RADIO_ACTIVE_WINDOW_MILLIS;
+    }
+
+    static synchronized void defer(DatadiveClient client) {
+        deferredClients.add(client);
+    }
+
+    /**
+     * @return whether the client still had a deferred upload
+     */
+    static synchronized boolean remove(DatadiveClient client) {
+        return deferredClients.remove(client);
+    }
+
+    /**
+     * Marks the radio active and releases every deferred upload into the same wake-up.
+     */
+    static void notifyActive() {
+        List<DatadiveClient> clients;
+        synchronized (RadioActivity.class) {
+            lastActiveMillis = SystemClock.elapsedRealtime();
+            if (deferredClients.isEmpty()) {
+                return;
+            }
+            clients = new ArrayList<DatadiveClient>(deferredClients);
+            deferredClients.clear();
+        }
+        for (DatadiveClient client : clients) {
+            client.uploadDeferredEvents();
+        }
+    }
+
+    // for testing
+    static synchronized void reset() {
+        deferredClients.clear();
+        lastActiveMillis = -1;
+    }
+}
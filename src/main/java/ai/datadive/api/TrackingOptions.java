@@ -25,7 +25,49 @@ public class TrackingOptions {
             Constants.AMP_TRACKING_OPTION_LAT_LNG,
     };
 
+    // every field has a bit in disabledMask, so the per-event checks don't hash strings
+    private static final String[] FIELDS = {
+            Constants.AMP_TRACKING_OPTION_ADID,
+            Constants.AMP_TRACKING_OPTION_CARRIER,
+            Constants.AMP_TRACKING_OPTION_CITY,
+            Constants.AMP_TRACKING_OPTION_COUNTRY,
+            Constants.AMP_TRACKING_OPTION_DEVICE_BRAND,
+            Constants.AMP_TRACKING_OPTION_DEVICE_MANUFACTURER,
+            Constants.AMP_TRACKING_OPTION_DEVICE_MODEL,
+            Constants.AMP_TRACKING_OPTION_DMA,
+            Constants.AMP_TRACKING_OPTION_IP_ADDRESS,
+            Constants.AMP_TRACKING_OPTION_LANGUAGE,
+            Constants.AMP_TRACKING_OPTION_LAT_LNG,
+            Constants.AMP_TRACKING_OPTION_OS_NAME,
+            Constants.AMP_TRACKING_OPTION_OS_VERSION,
+            Constants.AMP_TRACKING_OPTION_API_LEVEL,
+            Constants.AMP_TRACKING_OPTION_PLATFORM,
+            Constants.AMP_TRACKING_OPTION_REGION,
+            Constants.AMP_TRACKING_OPTION_VERSION_NAME,
+    };
+
+    private static final int ADID = bit(Constants.AMP_TRACKING_OPTION_ADID);
+    private static final int CARRIER = bit(Constants.AMP_TRACKING_OPTION_CARRIER);
+    private static final int CITY = bit(Constants.AMP_TRACKING_OPTION_CITY);
+    private static final int COUNTRY = bit(Constants.AMP_TRACKING_OPTION_COUNTRY);
+    private static final int DEVICE_BRAND = bit(Constants.AMP_TRACKING_OPTION_DEVICE_BRAND);
+    private static final int DEVICE_MANUFACTURER = bit(Constants.AMP_TRACKING_OPTION_DEVICE_MANUFACTURER);
+    private static final int DEVICE_MODEL = bit(Constants.AMP_TRACKING_OPTION_DEVICE_MODEL);
+    private static final int DMA = bit(Constants.AMP_TRACKING_OPTION_DMA);
+    private static final int IP_ADDRESS = bit(Constants.AMP_TRACKING_OPTION_IP_ADDRESS);
+    private static final int LANGUAGE = bit(Constants.AMP_TRACKING_OPTION_LANGUAGE);
+    private static final int LAT_LNG = bit(Constants.AMP_TRACKING_OPTION_LAT_LNG);
+    private static final int OS_NAME = bit(Constants.AMP_TRACKING_OPTION_OS_NAME);
+    private static final int OS_VERSION = bit(Constants.AMP_TRACKING_OPTION_OS_VERSION);
+    private static final int API_LEVEL = bit(Constants.AMP_TRACKING_OPTION_API_LEVEL);
+    private static final int PLATFORM = bit(Constants.AMP_TRACKING_OPTION_PLATFORM);
+    private static final int REGION = bit(Constants.AMP_TRACKING_OPTION_REGION);
+    private static final int VERSION_NAME = bit(Constants.AMP_TRACKING_OPTION_VERSION_NAME);
+
     Set<String> disabledFields = new HashSet<String>();
+    int disabledMask = 0;
+    // computed once per change, events share it
+    private JSONObject apiPropertiesTrackingOptions;
 
     public TrackingOptions disableAdid() {
         disableTrackingField(Constants.AMP_TRACKING_OPTION_ADID);
@@ -33,7 +75,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackAdid() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_ADID);
+        return shouldTrackField(ADID);
     }
 
     public TrackingOptions disableCarrier() {
@@ -42,7 +84,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackCarrier() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_CARRIER);
+        return shouldTrackField(CARRIER);
     }
 
     public TrackingOptions disableCity() {
@@ -51,7 +93,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackCity() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_CITY);
+        return shouldTrackField(CITY);
     }
 
     public TrackingOptions disableCountry() {
@@ -60,7 +102,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackCountry() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_COUNTRY);
+        return shouldTrackField(COUNTRY);
     }
 
     public TrackingOptions disableDeviceBrand() {
@@ -69,7 +111,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackDeviceBrand() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DEVICE_BRAND);
+        return shouldTrackField(DEVICE_BRAND);
     }
 
     public TrackingOptions disableDeviceManufacturer() {
@@ -78,7 +120,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackDeviceManufacturer() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DEVICE_MANUFACTURER);
+        return shouldTrackField(DEVICE_MANUFACTURER);
     }
 
     public TrackingOptions disableDeviceModel() {
@@ -87,7 +129,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackDeviceModel() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DEVICE_MODEL);
+        return shouldTrackField(DEVICE_MODEL);
     }
 
     public TrackingOptions disableDma() {
@@ -96,7 +138,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackDma() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_DMA);
+        return shouldTrackField(DMA);
     }
 
     public TrackingOptions disableIpAddress() {
@@ -105,7 +147,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackIpAddress() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_IP_ADDRESS);
+        return shouldTrackField(IP_ADDRESS);
     }
 
     public TrackingOptions disableLanguage() {
@@ -114,7 +156,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackLanguage() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_LANGUAGE);
+        return shouldTrackField(LANGUAGE);
     }
 
     public TrackingOptions disableLatLng() {
@@ -123,7 +165,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackLatLng() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_LAT_LNG);
+        return shouldTrackField(LAT_LNG);
     }
 
     public TrackingOptions disableOsName() {
@@ -132,7 +174,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackOsName() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_OS_NAME);
+        return shouldTrackField(OS_NAME);
     }
 
     public TrackingOptions disableOsVersion() {
@@ -141,7 +183,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackOsVersion() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_OS_VERSION);
+        return shouldTrackField(OS_VERSION);
     }
 
     public TrackingOptions disableApiLevel() {
@@ -150,7 +192,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackApiLevel() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_API_LEVEL);
+        return shouldTrackField(API_LEVEL);
     }
 
     public TrackingOptions disablePlatform() {
@@ -159,7 +201,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackPlatform() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_PLATFORM);
+        return shouldTrackField(PLATFORM);
     }
 
     public TrackingOptions disableRegion() {
@@ -168,7 +210,7 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackRegion() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_REGION);
+        return shouldTrackField(REGION);
     }
 
     public TrackingOptions disableVersionName() {
@@ -177,14 +219,37 @@ public class TrackingOptions {
     }
 
     boolean shouldTrackVersionName() {
-        return shouldTrackField(Constants.AMP_TRACKING_OPTION_VERSION_NAME);
+        return shouldTrackField(VERSION_NAME);
+    }
+
+    private static int bit(String field) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(field)) {
+                return 1 << i;
+            }
+        }
+        return 0;
     }
 
     private void disableTrackingField(String field) {
-        disabledFields.add(field);
+        if (disabledFields.add(field)) {
+            disabledMask |= bit(field);
+            apiPropertiesTrackingOptions = null;
+        }
     }
 
+    /**
+     * The disabled server side fields for the api properties. Computed once per change and
+     * shared, so callers must not modify it.
+     */
     protected JSONObject getApiPropertiesTrackingOptions() {
+        if (apiPropertiesTrackingOptions == null) {
+            apiPropertiesTrackingOptions = buildApiPropertiesTrackingOptions();
+        }
+        return apiPropertiesTrackingOptions;
+    }
+
+    private JSONObject buildApiPropertiesTrackingOptions() {
         JSONObject apiPropertiesTrackingOptions = new JSONObject();
         if (disabledFields.isEmpty()) {
             return apiPropertiesTrackingOptions;
@@ -202,8 +267,8 @@ public class TrackingOptions {
         return apiPropertiesTrackingOptions;
     }
 
-    private boolean shouldTrackField(String field) {
-        return !disabledFields.contains(field);
+    private boolean shouldTrackField(int field) {
+        return (disabledMask & field) == 0;
     }
 
     TrackingOptions mergeIn(TrackingOptions other) {
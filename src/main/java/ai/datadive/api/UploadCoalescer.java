@@ -0,0 +1,232 @@
+package ai.datadive.api;
+
+import android.os.SystemClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+
+/**
+ * Process-wide collector of the upload batches of instances with upload coalescing enabled.
+ * The first batch for an endpoint opens a group and waits for the coalescing window on its
+ * instance's httpThread; batches of other instances submitted in the meantime join the group,
+ * and the whole group is sent as one request. Each batch's outcome is then handled on its own
+ * instance's logThread, exactly as if it had been uploaded alone. If the server rejects the
+ * request as too large, or accepts it with a response that can't be matched to the payloads,
+ * the batches are sent again separately so one instance's payload can't fail the others.
+ */
+class UploadCoalescer {
+    private static final String TAG = UploadCoalescer.class.getName();
+    private static final DatadiveLog logger = DatadiveLog.getLogger();
+
+    private static final List<Group> groups = new ArrayList<Group>();
+
+    private UploadCoalescer() {
+    }
+
+    /**
+     * Batches go in one request only if everything that applies to the whole request matches.
+     */
+    private static class Group {
+        final OkHttpClient httpClient;
+        final String url;
+        final String bearerToken;
+        final boolean compression;
+        final List<DatadiveClient> clients = new ArrayList<DatadiveClient>();
+        final List<EventBatch> batches = new ArrayList<EventBatch>();
+
+        Group(DatadiveClient client) {
+            this.httpClient = client.httpClient;
+            this.url = client.url;
+            this.bearerToken = client.bearerToken;
+            this.compression = client.uploadCompression;
+        }
+
+        boolean accepts(DatadiveClient client) {
+            return httpClient == client.httpClient && url.equals(client.url) &&
+                    (bearerToken == null ? client.bearerToken == null :
+                            bearerToken.equals(client.bearerToken)) &&
+                    compression == client.uploadCompression;
+        }
+    }
+
+    /**
+     * Adds a batch to the open group for its endpoint, or opens one that is sent from the
+     * client's httpThread after windowMillis.
+     */
+    static void submit(DatadiveClient client, EventBatch batch, long windowMillis) {
+        final Group group;
+        synchronized (UploadCoalescer.class) {
+            for (Group open : groups) {
+                if (open.accepts(client)) {
+                    open.clients.add(client);
+                    open.batches.add(batch);
+                    return;
+                }
+            }
+            group = new Group(client);
+            group.clients.add(client);
+            group.batches.add(batch);
+            groups.add(group);
+        }
+
+        client.httpThread.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (UploadCoalescer.class) {
+                    groups.remove(group);
+                }
+                send(group);
+            }
+        }, windowMillis);
+    }
+
+    private static void send(Group group) {
+        int size = group.batches.size();
+        List<EventUploadBody> payloads = new ArrayList<EventUploadBody>(size);
+        for (int i = 0; i < size; i++) {
+            payloads.add(group.clients.get(i).newEventUploadBody(group.batches.get(i), true));
+        }
+
+        RequestBody body = new CoalescedUploadBody(payloads);
+        if (group.compression) {
+            body = new GzipRequestBody(body);
+        }
+
+        Request request;
+        try {
+            Request.Builder builder = new Request.Builder()
+                    .url(group.url)
+                    .post(body);
+
+            if (!Utils.isEmptyString(group.bearerToken)) {
+                builder.addHeader("Authorization", "Bearer " + group.bearerToken);
+            }
+
+            if (group.compression) {
+                builder.addHeader("Content-Encoding", "gzip");
+            }
+
+            request = builder.build();
+        } catch (IllegalArgumentException e) {
+            logger.e(TAG, e.toString());
+            for (int i = 0; i < size; i++) {
+                group.batches.get(i).retryable = false;
+                group.clients.get(i).failUpload(group.batches.get(i), e);
+            }
+            return;
+        }
+
+        RadioActivity.notifyActive();
+
+        long sentAtMillis = SystemClock.elapsedRealtime();
+        for (EventBatch batch : group.batches) {
+            batch.sentAtMillis = sentAtMillis;
+        }
+
+        int code;
+        String retryAfter;
+        String stringResponse;
+        try {
+            Response response = group.httpClient.newCall(request).execute();
+            code = response.code();
+            retryAfter = response.header("Retry-After");
+            stringResponse = response.body().string();
+        } catch (Exception e) {
+            // IOExceptions, and anything else so things don't crash on upload
+            logger.e(TAG, e.toString());
+            for (int i = 0; i < size; i++) {
+                group.clients.get(i).failUpload(group.batches.get(i), e);
+            }
+            return;
+        }
+
+        if (size > 1 && shouldSendSeparately(code, stringResponse)) {
+            logger.w(TAG, "Coalesced upload failed, " + stringResponse
+                    + ", will upload the batches separately");
+            sendSeparately(group);
+            return;
+        }
+        List<String> results = getResults(stringResponse, size);
+        for (int i = 0; i < size; i++) {
+            handleResult(group.clients.get(i), group.batches.get(i), code, retryAfter,
+                    results.get(i));
+        }
+    }
+
+    private static void sendSeparately(Group group) {
+        for (int i = 0; i < group.batches.size(); i++) {
+            final DatadiveClient client = group.clients.get(i);
+            final EventBatch batch = group.batches.get(i);
+            client.httpThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    client.makeEventUploadPostRequest(client.httpClient, batch);
+                }
+            });
+        }
+    }
+
+    // the outcome of each batch is handled on its own instance's logThread
+    private static void handleResult(final DatadiveClient client, final EventBatch batch,
+                                     final int code, final String retryAfter,
+                                     final String result) {
+        client.logThread.post(new Runnable() {
+            @Override
+            public void run() {
+                client.handleUploadResult(batch, code, retryAfter, result);
+            }
+        });
+    }
+
+    /**
+     * A 413 can't be blamed on one payload, applying it to every instance would shrink all of
+     * their batches, and a 2xx response that is neither a result per payload nor a success for
+     * all of them can't be matched to the payloads. Any other single result, like a 429 or 5xx,
+     * applies to every payload so each instance backs off as usual.
+     */
+    static boolean shouldSendSeparately(int code, String stringResponse) {
+        if (code == 413) {
+            return true;
+        }
+        return code >= 200 && code < 300 && !stringResponse.equals("success") &&
+                parseResults(stringResponse) == null;
+    }
+
+    /**
+     * Splits a response into one result per payload. A JSON array holds the results in payload
+     * order, anything else is the result for all payloads.
+     */
+    static List<String> getResults(String stringResponse, int size) {
+        JSONArray array = parseResults(stringResponse);
+        List<String> results = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++) {
+            results.add(array == null ? stringResponse : array.optString(i, ""));
+        }
+        return results;
+    }
+
+    private static JSONArray parseResults(String stringResponse) {
+        if (!stringResponse.startsWith("[")) {
+            return null;
+        }
+        try {
+            return new JSONArray(stringResponse);
+        } catch (JSONException e) {
+            logger.w(TAG, "Malformed coalesced upload response: " + stringResponse);
+            return null;
+        }
+    }
+
+    // for testing
+    static synchronized void reset() {
+        groups.clear();
+    }
+}
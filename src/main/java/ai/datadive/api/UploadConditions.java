@@ -0,0 +1,91 @@
+package ai.datadive.api;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.BatteryManager;
+
+/**
+ * Network and power state an {@link UploadPolicy} decides on.
+ */
+public class UploadConditions {
+    private final boolean connected;
+    private final boolean metered;
+    private final String networkType;
+    // read the battery state on the first isCharging() call, most policies never ask
+    private Context context;
+    private boolean charging;
+
+    public UploadConditions(boolean connected, boolean metered, boolean charging,
+                            String networkType) {
+        this.connected = connected;
+        this.metered = metered;
+        this.charging = charging;
+        this.networkType = networkType;
+    }
+
+    private UploadConditions(boolean connected, boolean metered, String networkType,
+                             Context context) {
+        this(connected, metered, false, networkType);
+        this.context = context;
+    }
+
+    /**
+     * Reads the current state. Without the ACCESS_NETWORK_STATE permission the network is
+     * assumed to be connected and metered.
+     */
+    static UploadConditions fromContext(Context context) {
+        boolean connected = true;
+        boolean metered = true;
+        String networkType = Constants.NETWORK_TYPE_UNKNOWN;
+        try {
+            ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (connectivityManager != null) {
+                NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+                connected = networkInfo != null && networkInfo.isConnected();
+                metered = connectivityManager.isActiveNetworkMetered();
+                networkType = Utils.getNetworkType(networkInfo);
+            }
+        } catch (SecurityException e) {
+            // keep the defaults
+        }
+        return new UploadConditions(connected, metered, networkType, context);
+    }
+
+    private static boolean readCharging(Context context) {
+        // a sticky broadcast, no receiver is registered
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery == null) {
+            return false;
+        }
+        int status = battery.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        return status == BatteryManager.BATTERY_STATUS_CHARGING ||
+                status == BatteryManager.BATTERY_STATUS_FULL;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isMetered() {
+        return metered;
+    }
+
+    public boolean isCharging() {
+        if (context != null) {
+            charging = readCharging(context);
+            context = null;
+        }
+        return charging;
+    }
+
+    /**
+     * @return one of wifi, cellular, other, none or unknown
+     */
+    public String getNetworkType() {
+        return networkType;
+    }
+}
@@ -0,0 +1,93 @@
+package ai.datadive.api;
+
+/**
+ * Built-in {@link UploadPolicy} implementations.
+ */
+public class UploadPolicies {
+
+    private UploadPolicies() {
+    }
+
+    /**
+     * Don't attempt uploads without a network connection.
+     *
+     * @return the UploadPolicy
+     */
+    public static UploadPolicy connectedOnly() {
+        return new UploadPolicy() {
+            @Override
+            public int getBatchSize(UploadConditions conditions, int batchSize) {
+                return conditions.isConnected() ? batchSize : 0;
+            }
+        };
+    }
+
+    /**
+     * Upload at most maxBatchSize events per request on metered networks.
+     *
+     * @param maxBatchSize the batch size limit on metered networks
+     * @return the UploadPolicy
+     */
+    public static UploadPolicy limitOnMetered(final int maxBatchSize) {
+        return new UploadPolicy() {
+            @Override
+            public int getBatchSize(UploadConditions conditions, int batchSize) {
+                return conditions.isMetered() ? Math.min(batchSize, maxBatchSize) : batchSize;
+            }
+        };
+    }
+
+    /**
+     * Upload at least drainBatchSize events per request on an unmetered network while the
+     * device is charging, to drain the queue when it is cheap to do so.
+     *
+     * @param drainBatchSize the batch size while unmetered and charging
+     * @return the UploadPolicy
+     */
+    public static UploadPolicy drainWhenCharging(final int drainBatchSize) {
+        return new UploadPolicy() {
+            @Override
+            public int getBatchSize(UploadConditions conditions, int batchSize) {
+                if (!conditions.isMetered() && conditions.isCharging()) {
+                    return Math.max(batchSize, drainBatchSize);
+                }
+                return batchSize;
+            }
+        };
+    }
+
+    /**
+     * Apply policies in order, each one gets the batch size the previous one returned. Stops at
+     * the first policy that returns 0.
+     *
+     * @param policies the policies
+     * @return the UploadPolicy
+     */
+    public static UploadPolicy all(final UploadPolicy... policies) {
+        return new UploadPolicy() {
+            @Override
+            public int getBatchSize(UploadConditions conditions, int batchSize) {
+                for (UploadPolicy policy : policies) {
+                    batchSize = policy.getBatchSize(conditions, batchSize);
+                    if (batchSize <= 0) {
+                        return 0;
+                    }
+                }
+                return batchSize;
+            }
+        };
+    }
+
+    /**
+     * Skip uploads while disconnected, upload at most meteredBatchSize events per request on
+     * metered networks, and at least drainBatchSize while unmetered and charging.
+     *
+     * @param meteredBatchSize the batch size limit on metered networks
+     * @param drainBatchSize   the batch size while unmetered and charging
+     * @return the UploadPolicy
+     */
+    public static UploadPolicy standard(int meteredBatchSize, int drainBatchSize) {
+        return all(connectedOnly(), limitOnMetered(meteredBatchSize),
+                drainWhenCharging(drainBatchSize));
+    }
+}
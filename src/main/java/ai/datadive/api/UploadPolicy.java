@@ -0,0 +1,17 @@
+package ai.datadive.api;
+
+/**
+ * Decides whether and how much to upload given the current network and power state. Set it
+ * with {@link DatadiveClient#setUploadPolicy(UploadPolicy)}; {@link UploadPolicies} has the
+ * built-in policies.
+ */
+public interface UploadPolicy {
+    /**
+     * Called on the SDK's background thread before each upload request.
+     *
+     * @param conditions the current network and power state
+     * @param batchSize  the number of events the SDK would upload otherwise
+     * @return the number of events to upload, or 0 to not upload for now
+     */
+    public int getBatchSize(UploadConditions conditions, int batchSize);
+}
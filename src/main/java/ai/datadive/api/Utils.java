@@ -5,12 +5,19 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.Iterator;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public class Utils {
     private static final String TAG = Utils.class.getName();
@@ -99,6 +106,29 @@ public class Utils {
         return (s == null || s.length() == 0);
     }
 
+    // number of bytes s takes up in UTF-8, without encoding it
+    static long utf8Length(String s) {
+        if (s == null) {
+            return 0;
+        }
+        long length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
     static String normalizeInstanceName(String instance) {
         if (isEmptyString(instance)) {
             instance = Constants.DEFAULT_INSTANCE;
@@ -122,6 +152,62 @@ public class Utils {
         return getAmplitudeSharedPreferences(context, instanceName).getString(key, null);
     }
 
+    /**
+     * Type of the active network, one of the Constants.NETWORK_TYPE_* values. Unknown if the
+     * app does not hold the ACCESS_NETWORK_STATE permission.
+     */
+    static String getNetworkType(Context context) {
+        try {
+            ConnectivityManager connectivityManager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            if (connectivityManager == null) {
+                return Constants.NETWORK_TYPE_UNKNOWN;
+            }
+            return getNetworkType(connectivityManager.getActiveNetworkInfo());
+        } catch (SecurityException e) {
+            return Constants.NETWORK_TYPE_UNKNOWN;
+        }
+    }
+
+    static String getNetworkType(NetworkInfo networkInfo) {
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            return Constants.NETWORK_TYPE_NONE;
+        }
+        switch (networkInfo.getType()) {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return Constants.NETWORK_TYPE_WIFI;
+            case ConnectivityManager.TYPE_MOBILE:
+                return Constants.NETWORK_TYPE_CELLULAR;
+            default:
+                return Constants.NETWORK_TYPE_OTHER;
+        }
+    }
+
+    /**
+     * Parses a Retry-After header, either delay-seconds or an HTTP date.
+     *
+     * @return the delay in milliseconds, or -1 if the header is missing or invalid
+     */
+    static long parseRetryAfterMillis(String retryAfter, long nowMillis) {
+        if (isEmptyString(retryAfter)) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // not delay-seconds, try an HTTP date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            Date date = format.parse(retryAfter.trim());
+            return Math.max(0, date.getTime() - nowMillis);
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
     static boolean checkLocationPermissionAllowed(Context context) {
         return checkPermissionAllowed(context, Manifest.permission.ACCESS_COARSE_LOCATION) ||
                 checkPermissionAllowed(context, Manifest.permission.ACCESS_FINE_LOCATION);
@@ -17,8 +17,10 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.shadows.ShadowLooper;
 import org.robolectric.shadows.ShadowPackageManager;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +28,8 @@ import java.util.Map;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.GzipSource;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.fail;
@@ -52,11 +56,17 @@ public class BaseTest {
     // override getCurrentTimeMillis to enforce time progression in tests
     protected class DatadiveClientWithTime extends DatadiveClient {
         MockClock mockClock;
+        UploadConditions uploadConditions;
 
         public DatadiveClientWithTime(MockClock mockClock) { this.mockClock = mockClock; }
 
         @Override
         protected long getCurrentTimeMillis() { return mockClock.currentTimeMillis(); }
+
+        @Override
+        protected UploadConditions getUploadConditions() {
+            return uploadConditions != null ? uploadConditions : super.getUploadConditions();
+        }
     }
 
     // override AmplitudeDatabaseHelper to throw Cursor Allocation Exception
@@ -258,11 +268,55 @@ public class BaseTest {
     }
 
     public JSONArray getEventsFromRequest(RecordedRequest request) throws JSONException {
-        Map<String, String> parsedBody = parseRequest(request.getUtf8Body());
+        String contentType = request.getHeader("Content-Type");
+        if (contentType != null && contentType.startsWith("application/json")) {
+            return expandEvents(new JSONObject(getRequestBody(request)).get("e").toString());
+        }
+        Map<String, String> parsedBody = parseRequest(getRequestBody(request));
         if (parsedBody == null && !parsedBody.containsKey("e")) {
             return null;
         }
-        return new JSONArray(parsedBody.get("e"));
+        return expandEvents(parsedBody.get("e"));
+    }
+
+    // collector stand-in for envelope uploads, merges the common members back into the events
+    // they were removed from, which are the ones without device_id
+    public static JSONArray expandEvents(String e) throws JSONException {
+        if (!e.startsWith("{")) {
+            return new JSONArray(e);
+        }
+        JSONObject envelope = new JSONObject(e);
+        JSONObject common = envelope.getJSONObject("common");
+        JSONArray events = envelope.getJSONArray("events");
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            if (event.has("device_id")) {
+                continue;
+            }
+            Iterator<String> keys = common.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if (!event.has(key)) {
+                    event.put(key, common.get(key));
+                }
+            }
+        }
+        return events;
+    }
+
+    // request body as the collector sees it, gunzipped if it was sent compressed
+    public static String getRequestBody(RecordedRequest request) {
+        if (!"gzip".equals(request.getHeader("Content-Encoding"))) {
+            return request.getUtf8Body();
+        }
+        try {
+            Buffer body = new Buffer();
+            body.writeAll(new GzipSource(request.getBody().clone()));
+            return body.readUtf8();
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+        return null;
     }
 
     // parse request string into a key:value map
@@ -1,7 +1,11 @@
 package ai.datadive.api;
 
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
@@ -10,9 +14,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.annotation.Config;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
@@ -186,6 +192,96 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(1, insertOrReplaceKeyLongValue(key, longValue));
     }
 
+    @Test
+    public void testUpgradeVersion3ToVersion4() throws JSONException {
+        // v3 event tables have no sequence_number or byte_size columns
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.EVENT_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + DatabaseHelper.IDENTIFY_TABLE_NAME);
+        db.execSQL("CREATE TABLE " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("CREATE TABLE " + DatabaseHelper.IDENTIFY_TABLE_NAME
+                + " (id INTEGER PRIMARY KEY AUTOINCREMENT, event TEXT);");
+        db.execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME + " (event) VALUES "
+                + "('{\"event_type\":\"legacy\"}'), "
+                + "('{\"event_type\":\"test_upgrade_2\",\"sequence_number\":2}'), "
+                + "('{\"event_type\":\"test_upgrade_4\",\"sequence_number\":4}')");
+        db.execSQL("INSERT INTO " + DatabaseHelper.IDENTIFY_TABLE_NAME + " (event) VALUES "
+                + "('{\"event_type\":\"$identify\",\"sequence_number\":1}'), "
+                + "('{\"event_type\":\"$identify\",\"sequence_number\":3}')");
+
+        dbInstance.onUpgrade(db, 3, 4);
+
+        // queued rows are kept and read back in sequence number order
+        JSONArray events = new JSONArray(dbInstance.getEventsAndIdentifys(-1, -1, -1).toString());
+        assertEquals(5, events.length());
+        assertEquals("legacy", events.getJSONObject(0).optString("event_type"));
+        assertEquals(1, events.getJSONObject(1).optLong("sequence_number"));
+        assertEquals(2, events.getJSONObject(2).optLong("sequence_number"));
+        assertEquals(3, events.getJSONObject(3).optLong("sequence_number"));
+        assertEquals(4, events.getJSONObject(4).optLong("sequence_number"));
+        assertEquals(4, addEvent("test_upgrade_5"));
+    }
+
+    @Test
+    public void testGetEventsAndIdentifys() throws JSONException {
+        dbInstance.addEvent("{\"event_type\":\"event_1\"}", 1);
+        dbInstance.addIdentify("{\"event_type\":\"identify_2\"}", 2);
+        dbInstance.addEvent("{\"event_type\":\"event_3\"}", 3);
+        dbInstance.addIdentify("{\"event_type\":\"identify_4\"}", 4);
+        dbInstance.addEvent("{\"event_type\":\"event_5\"}", 5);
+
+        EventBatch batch = dbInstance.getEventsAndIdentifys(-1, -1, 3);
+        JSONArray events = new JSONArray(batch.toString());
+        assertEquals(3, events.length());
+        assertEquals("event_1", events.getJSONObject(0).optString("event_type"));
+        assertEquals("identify_2", events.getJSONObject(1).optString("event_type"));
+        assertEquals("event_3", events.getJSONObject(2).optString("event_type"));
+        assertEquals(2, events.getJSONObject(2).optLong("event_id"));
+        assertEquals(2, batch.maxEventId);
+        assertEquals(1, batch.maxIdentifyId);
+
+        // rows past the given ids are left for the next batch
+        batch = dbInstance.getEventsAndIdentifys(1, 2, -1);
+        assertEquals(3, batch.size());
+        assertEquals(1, batch.maxEventId);
+        assertEquals(2, batch.maxIdentifyId);
+
+        // stored strings are spliced, not parsed
+        dbInstance.addEvent("{}", 6);
+        dbInstance.addEvent("not json", 7);
+        batch = dbInstance.getEventsAndIdentifys(-1, -1, -1);
+        events = new JSONArray(batch.toString());
+        assertEquals(6, events.length());
+        assertEquals(4, events.getJSONObject(5).getLong("event_id"));
+        assertEquals(1, events.getJSONObject(5).length());
+        assertEquals(5, batch.maxEventId);
+    }
+
+    @Test
+    public void testGetEventsAndIdentifysByteBudget() throws JSONException {
+        String event = "{\"event_type\":\"event\"}";
+        for (int i = 0; i < 5; i++) {
+            dbInstance.addEvent(event, i + 1);
+        }
+        long eventBytes = EventBatch.getSerializedSize(event.length(), 1);
+
+        // stops at the largest prefix under the budget
+        EventBatch batch = dbInstance.getEventsAndIdentifys(-1, -1, -1, -1, 5, 1 + eventBytes * 3);
+        assertEquals(3, batch.size());
+        assertEquals(3, batch.maxEventId);
+        assertEquals(batch.toString().length(), batch.byteSize);
+
+        // the count limit still applies
+        batch = dbInstance.getEventsAndIdentifys(-1, -1, -1, -1, 2, 1 + eventBytes * 3);
+        assertEquals(2, batch.size());
+
+        // an event over the budget is sent on its own
+        batch = dbInstance.getEventsAndIdentifys(-1, -1, -1, -1, 5, 1);
+        assertEquals(1, batch.size());
+        assertEquals(1, batch.maxEventId);
+    }
+
     @Test
     public void testInsertOrReplaceKeyValue() {
         String key = "test_key";
@@ -241,6 +337,25 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(3, getLastUnsentEvent().optLong("event_id"));
     }
 
+    @Test
+    public void testAddEvents() {
+        assertEquals(1, addEvent("test_add_events"));
+        assertEquals(4, dbInstance.addEvents(Arrays.asList(
+            "{\"event_type\":\"test_add_events_1\"}",
+            "{\"event_type\":\"test_add_events_2\"}",
+            "{\"event_type\":\"test_add_events_3\"}"
+        ), Arrays.asList(1L, 2L, 3L)));
+        assertEquals(4, dbInstance.getEventCount());
+        assertEquals(4, getLastUnsentEvent().optLong("event_id"));
+        assertEquals("test_add_events_3", getLastUnsentEvent().optString("event_type"));
+
+        assertEquals(2, dbInstance.addIdentifys(Arrays.asList(
+            "{\"event_type\":\"$identify\"}",
+            "{\"event_type\":\"$identify\"}"
+        ), Arrays.asList(4L, 5L)));
+        assertEquals(2, dbInstance.getIdentifyCount());
+    }
+
     @Test
     public void testAddIdentify() {
         assertEquals(1, addIdentify("test_add_identify"));
@@ -383,6 +498,26 @@ public class DatabaseHelperTest extends BaseTest {
         assertEquals(0, dbInstance.getEventCount());
     }
 
+    @Test
+    public void testEventCountSeededFromExistingRows() {
+        // rows written before the count is first read, e.g. by a previous process
+        dbInstance.getWritableDatabase().execSQL("INSERT INTO " + DatabaseHelper.EVENT_TABLE_NAME
+                + " (event) VALUES ('{}'), ('{}'), ('{}')");
+        assertEquals(3, dbInstance.getEventCount());
+
+        assertEquals(4, addEvent("test_seeded_count"));
+        assertEquals(4, dbInstance.getEventCount());
+        dbInstance.removeEvent(100);
+        assertEquals(4, dbInstance.getEventCount());
+        dbInstance.removeEvents(2);
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(2, dbInstance.getTotalEventCount());
+
+        // recreating the schema forces a fresh count
+        dbInstance.onCreate(dbInstance.getWritableDatabase());
+        assertEquals(2, dbInstance.getEventCount());
+    }
+
     @Test
     public void testGetIdentifyCount() {
         assertEquals(1, addIdentify("test_get_identify_count_1"));
@@ -487,6 +622,60 @@ public class DatabaseHelperTest extends BaseTest {
         assertTrue(events.isEmpty());
     }
 
+    @Test
+    public void testKeepDatabaseOpen() {
+        // default mode closes the connection after every operation
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertEquals(1, addEvent("test_keep_open_1"));
+        assertFalse(db.isOpen());
+
+        dbInstance.setKeepDatabaseOpen(true);
+        db = dbInstance.getWritableDatabase();
+        assertEquals(2, addEvent("test_keep_open_2"));
+        assertEquals(2, dbInstance.getEventCount());
+        assertTrue(db.isOpen());
+        assertSame(db, dbInstance.getWritableDatabase());
+
+        // connection was just used, so it is not idle yet
+        assertFalse(dbInstance.closeIfIdle(60 * 1000));
+        assertTrue(db.isOpen());
+        assertTrue(dbInstance.closeIfIdle(0));
+        assertFalse(db.isOpen());
+
+        // reopens transparently on the next operation
+        assertEquals(3, addEvent("test_keep_open_3"));
+        assertEquals(3, dbInstance.getEventCount());
+
+        dbInstance.setKeepDatabaseOpen(false);
+    }
+
+    @Test
+    public void testDatabaseOptions() {
+        dbInstance.setDatabaseOptions(new DatabaseOptions()
+            .enableWriteAheadLogging()
+            .setSynchronous(DatabaseOptions.SYNCHRONOUS_NORMAL)
+            .setCacheSize(-1024)
+            .enableIncrementalVacuum(2));
+        dbInstance.setKeepDatabaseOpen(true);
+
+        for (int i = 1; i <= 5; i++) {
+            assertEquals(i, addEvent("test_database_options_" + i));
+        }
+        SQLiteDatabase db = dbInstance.getWritableDatabase();
+        assertTrue(db.isWriteAheadLoggingEnabled());
+        assertEquals(1, DatabaseUtils.longForQuery(db, "PRAGMA synchronous", null));
+        assertEquals(-1024, DatabaseUtils.longForQuery(db, "PRAGMA cache_size", null));
+        assertEquals(2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+
+        // deletes past the threshold run an incremental vacuum on the same connection
+        dbInstance.removeEvents(3);
+        assertEquals(2, dbInstance.getEventCount());
+        assertEquals(6, addEvent("test_database_options_6"));
+
+        dbInstance.setKeepDatabaseOpen(false);
+        dbInstance.setDatabaseOptions(null);
+    }
+
     @Test
     public void testGetDatabaseHelper() {
         assertEquals(DatabaseHelper.instances.size(), 1);
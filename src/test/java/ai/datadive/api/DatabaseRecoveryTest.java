@@ -62,6 +62,35 @@ public class DatabaseRecoveryTest extends BaseTest {
         dbInstance = null;
     }
 
+    @Test
+    public void testRecoverMetadataFromQueuedEvents() throws JSONException {
+        looper.runToEndOfTasks();
+
+        // simulate metadata that was held in memory and lost when the process died
+        dbInstance.addEvent(new JSONObject()
+            .put("event_type", "test").put("sequence_number", 7).toString());
+        dbInstance.addIdentify(new JSONObject()
+            .put("event_type", Constants.IDENTIFY_EVENT).put("sequence_number", 8).toString());
+        dbInstance.insertOrReplaceKeyLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY, 5L);
+        dbInstance.insertOrReplaceKeyLongValue(DatadiveClient.LAST_EVENT_ID_KEY, -1L);
+        dbInstance.insertOrReplaceKeyLongValue(DatadiveClient.LAST_IDENTIFY_ID_KEY, -1L);
+
+        DatadiveClient relaunched = new DatadiveClient();
+        try {
+            relaunched.initialize(context, apiKey);
+            Shadows.shadowOf(relaunched.logThread.getLooper()).runToEndOfTasks();
+
+            assertEquals(relaunched.lastEventId, 1);
+            assertEquals(relaunched.lastIdentifyId, 1);
+            assertEquals(relaunched.getNextSequenceNumber(), 9);
+            assertEquals((long) dbInstance.getLongValue(DatadiveClient.LAST_EVENT_ID_KEY), 1);
+            assertEquals((long) dbInstance.getLongValue(DatadiveClient.LAST_IDENTIFY_ID_KEY), 1);
+        } finally {
+            relaunched.logThread.getLooper().quit();
+            relaunched.httpThread.getLooper().quit();
+        }
+    }
+
     @Test
     public void testRecoverFromDatabaseReset() {
 
@@ -120,6 +149,31 @@ public class DatabaseRecoveryTest extends BaseTest {
         reset(mockDbHelper);
     }
 
+    @Test
+    public void testDatabaseResetReservesSequenceNumberBlock() {
+        datadive.setSequenceNumberBlockSize(100);
+        datadive.logEvent("test");
+        looper.runToEndOfTasks();
+        assertEquals((long) dbInstance.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), 100);
+
+        DatabaseHelper mockDbHelper = PowerMockito.spy(dbInstance);
+        PowerMockito.doThrow(new SQLiteException("test")).when(mockDbHelper).insertEventContentValuesIntoTable(Matchers.any(SQLiteDatabase.class), anyString(), Matchers.any(ContentValues.class));
+        datadive.dbHelper = mockDbHelper;
+
+        // the failed insert resets the database and the reserved block with it
+        datadive.logEvent("test");
+        looper.runToEndOfTasks();
+        assertNull(dbInstance.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY));
+
+        // the next event reserves a new block right away instead of when the old one runs out
+        datadive.dbHelper = dbInstance;
+        datadive.logEvent("test");
+        looper.runToEndOfTasks();
+        assertEquals((long) dbInstance.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), 102);
+
+        reset(mockDbHelper);
+    }
+
     @Test
     public void testDatabaseResetAvoidStackOverflow() {
 
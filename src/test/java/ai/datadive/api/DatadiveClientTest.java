@@ -1,9 +1,14 @@
 package ai.datadive.api;
 
+import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import ai.datadive.security.MD5;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -19,24 +24,36 @@ import org.robolectric.Robolectric;
 import org.robolectric.Shadows;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.shadows.ShadowNetworkInfo;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okhttp3.Call;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.RecordedRequest;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -270,6 +287,71 @@ public class DatadiveClientTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testDeviceContextRebuilt() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+        DeviceContext deviceContext = datadive.deviceContext;
+        assertNotNull(deviceContext);
+
+        // logging events reuses the same device context
+        datadive.logEvent("test1");
+        looper.runToEndOfTasks();
+        assertSame(datadive.deviceContext, deviceContext);
+
+        datadive.setTrackingOptions(new TrackingOptions().disableCarrier());
+        datadive.setLibraryName("datadive-unity");
+        datadive.logEvent("test2");
+        looper.runToEndOfTasks();
+        assertNotSame(datadive.deviceContext, deviceContext);
+
+        JSONObject event = getLastEvent();
+        assertEquals(event.getString("event_type"), "test2");
+        assertEquals(event.getJSONObject("library").getString("name"), "datadive-unity");
+        assertTrue(event.has("os_name"));
+        assertTrue(event.has("platform"));
+        assertFalse(event.has("carrier"));
+    }
+
+    @Test
+    public void testSaveEventOverride() throws JSONException {
+        final List<String> savedTypes = new ArrayList<String>();
+        DatadiveClient client = new DatadiveClient("app1") {
+            @Override
+            protected long saveEvent(String eventType, JSONObject event) {
+                savedTypes.add(eventType);
+                return super.saveEvent(eventType, event);
+            }
+        };
+        client.url = server.url("/").toString();
+        client.initialize(context, apiKey);
+        ShadowLooper looper = Shadows.shadowOf(client.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        // logEvent goes through the overridable hook
+        client.logEvent("test1");
+        looper.runToEndOfTasks();
+        assertEquals(savedTypes, Arrays.asList("test1"));
+
+        // events saved directly get the device context too, complete events are kept as is
+        JSONObject event = new JSONObject().put("event_type", "test2");
+        assertTrue(client.saveEvent("test2", event) > 0);
+        JSONObject saved = client.dbHelper.getEvents(-1, -1).get(1);
+        assertEquals(saved.getString("event_type"), "test2");
+        assertTrue(saved.has("os_name"));
+        assertTrue(saved.has("library"));
+
+        JSONObject library = new JSONObject().put("name", "custom").put("version", "1.0");
+        event = new JSONObject().put("event_type", "test3").put("library", library);
+        assertTrue(client.saveEvent("test3", event) > 0);
+        saved = client.dbHelper.getEvents(-1, -1).get(2);
+        assertEquals(saved.getJSONObject("library").getString("name"), "custom");
+        assertFalse(saved.has("os_name"));
+
+        client.logThread.getLooper().quit();
+        client.httpThread.getLooper().quit();
+    }
+
     @Test
     public void testIdentifyMultipleOperations() throws JSONException {
         String property1 = "string value";
@@ -441,6 +523,49 @@ public class DatadiveClientTest extends BaseTest {
         assertEquals(getUnsentIdentifyCount(), 0);
     }
 
+    @Test
+    public void testGroupCommit() throws JSONException {
+        long [] timestamps = {1, 2, 3, 4, 5, 6, 7};
+        clock.setTimestamps(timestamps);
+        Robolectric.getForegroundThreadScheduler().advanceTo(1);
+
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        datadive.enableGroupCommit(3, 1000);
+        datadive.logEvent("test_event1");
+        datadive.logEvent("test_event2");
+        datadive.identify(new Identify().add("photo_count", 1));
+        datadive.logEvent("test_event3");
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+
+        // first batch written at the size limit, the remainder once the window expired
+        assertEquals(getUnsentEventCount(), 3);
+        assertEquals(datadive.lastEventId, 3);
+        assertEquals(getUnsentIdentifyCount(), 1);
+        assertEquals(datadive.lastIdentifyId, 1);
+        JSONArray events = getUnsentEvents(3);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(events.optJSONObject(i).optString("event_type"), "test_event" + (i+1));
+        }
+        assertEquals(events.optJSONObject(2).optLong("sequence_number"), 4);
+
+        RecordedRequest request = runRequest(datadive);
+        assertEquals(getEventsFromRequest(request).length(), 4);
+        looper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(getUnsentIdentifyCount(), 0);
+
+        // a buffered event is told apart from a failed write, and gets its id once written
+        JSONObject event = new JSONObject().put("event_type", "test_event4");
+        assertEquals(datadive.saveEvent("test_event4", event), DatadiveClient.EVENT_ID_DEFERRED);
+        assertEquals(datadive.lastEventId, 3);
+        datadive.flushPendingEvents();
+        assertEquals(datadive.lastEventId, 4);
+    }
+
     @Test
     public void testLog3Identifys() throws JSONException {
         long [] timestamps = {1, 2, 3, 4, 5, 6, 7};
@@ -741,6 +866,165 @@ public class DatadiveClientTest extends BaseTest {
         assertEquals(getUnsentIdentifyCount(), 2); // should have 2 identifys left
     }
 
+    @Test
+    public void testUploadChecksum() throws JSONException, UnsupportedEncodingException {
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        JSONObject properties = new JSONObject().put("query", "a+b=c & d?").put("city", "Zürich 東京");
+        datadive.logEvent("test_checksum", properties);
+        datadive.logEvent("test_checksum_2");
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        looper.runToEndOfTasks();
+
+        RecordedRequest request = runRequest(datadive);
+        Map<String, String> body = parseRequest(request.getUtf8Body());
+        JSONArray events = new JSONArray(body.get("e"));
+        assertEquals(events.length(), 2);
+        assertEquals(events.getJSONObject(0).getLong("event_id"), 1);
+        assertTrue(Utils.compareJSONObjects(
+            events.getJSONObject(0).getJSONObject("event_properties"), properties
+        ));
+
+        String preimage = body.get("v") + body.get("client") + body.get("e") + body.get("upload_time");
+        String checksum = datadive.bytesToHexString(new MD5().digest(preimage.getBytes("UTF-8")));
+        assertEquals(checksum, body.get("checksum"));
+
+        // sent with its length like FormBody, not chunked
+        assertNull(request.getHeader("Transfer-Encoding"));
+        assertEquals(request.getHeader("Content-Length"), String.valueOf(request.getBodySize()));
+    }
+
+    @Test
+    public void testUploadCompression() throws JSONException, UnsupportedEncodingException {
+        datadive.enableUploadCompression();
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        JSONObject properties = new JSONObject().put("query", "a+b=c & d?");
+        for (int i = 0; i < 10; i++) {
+            datadive.logEvent("test_compression", properties);
+        }
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        looper.runToEndOfTasks();
+
+        RecordedRequest request = runRequest(datadive);
+        assertEquals("gzip", request.getHeader("Content-Encoding"));
+        String uncompressed = getRequestBody(request);
+        assertTrue(request.getBodySize() < uncompressed.length());
+
+        Map<String, String> body = parseRequest(uncompressed);
+        JSONArray events = new JSONArray(body.get("e"));
+        assertEquals(events.length(), 10);
+        assertEquals(events.getJSONObject(9).getLong("event_id"), 10);
+        assertTrue(Utils.compareJSONObjects(
+            events.getJSONObject(9).getJSONObject("event_properties"), properties
+        ));
+
+        // the checksum covers the uncompressed values
+        String preimage = body.get("v") + body.get("client") + body.get("e") + body.get("upload_time");
+        String checksum = datadive.bytesToHexString(new MD5().digest(preimage.getBytes("UTF-8")));
+        assertEquals(checksum, body.get("checksum"));
+    }
+
+    @Test
+    public void testJsonUploadBody() throws JSONException, UnsupportedEncodingException {
+        datadive.enableJsonUploadBody();
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        JSONObject properties = new JSONObject().put("query", "a+b=c & \"d\"").put("city", "Zürich 東京");
+        datadive.logEvent("test_json", properties);
+        datadive.logEvent("test_json_2");
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        looper.runToEndOfTasks();
+
+        RecordedRequest request = runRequest(datadive);
+        assertTrue(request.getHeader("Content-Type").startsWith("application/json"));
+        JSONObject body = new JSONObject(request.getUtf8Body());
+        JSONArray events = getEventsFromRequest(request);
+        assertEquals(events.length(), 2);
+        assertEquals(events.getJSONObject(1).getLong("event_id"), 2);
+        assertEquals(events.getJSONObject(1).getString("event_type"), "test_json_2");
+        assertTrue(Utils.compareJSONObjects(
+            events.getJSONObject(0).getJSONObject("event_properties"), properties
+        ));
+
+        // same checksum as the form body, over the events array exactly as sent
+        String rawBody = request.getUtf8Body();
+        int eventsStart = rawBody.indexOf(",\"e\":") + 5;
+        int eventsEnd = rawBody.indexOf(",\"upload_time\":");
+        String preimage = body.getString("v") + body.getString("client")
+            + rawBody.substring(eventsStart, eventsEnd) + body.getString("upload_time");
+        String checksum = datadive.bytesToHexString(new MD5().digest(preimage.getBytes("UTF-8")));
+        assertEquals(checksum, body.getString("checksum"));
+
+        assertNull(request.getHeader("Transfer-Encoding"));
+        assertEquals(request.getHeader("Content-Length"), String.valueOf(request.getBodySize()));
+    }
+
+    @Test
+    public void testEnvelopeUploadBody() throws JSONException {
+        datadive.enableEnvelopeUploadBody().enableJsonUploadBody();
+        datadive.setUserId("user1");
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        for (int i = 0; i < 3; i++) {
+            datadive.logEvent("test" + i);
+        }
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        looper.runToEndOfTasks();
+
+        RecordedRequest request = runRequest(datadive);
+        JSONObject body = new JSONObject(getRequestBody(request));
+        assertEquals(body.getString("v"), "" + Constants.ENVELOPE_API_VERSION);
+
+        // the shared fields are sent once
+        JSONObject envelope = body.getJSONObject("e");
+        JSONObject common = envelope.getJSONObject("common");
+        assertEquals(common.getString("user_id"), "user1");
+        assertEquals(common.getString("device_id"), datadive.getDeviceId());
+        assertTrue(common.has("os_name"));
+        assertTrue(common.has("library"));
+        JSONArray sent = envelope.getJSONArray("events");
+        assertEquals(sent.length(), 3);
+        assertFalse(sent.getJSONObject(0).has("user_id"));
+        assertFalse(sent.getJSONObject(0).has("os_name"));
+
+        // re-expanded events are complete
+        JSONArray events = expandEvents(envelope.toString());
+        for (int i = 0; i < 3; i++) {
+            JSONObject event = events.getJSONObject(i);
+            assertEquals(event.getLong("event_id"), i + 1);
+            assertEquals(event.getString("event_type"), "test" + i);
+            assertEquals(event.getString("user_id"), "user1");
+            assertTrue(event.has("os_name"));
+            assertTrue(event.has("library"));
+        }
+
+        // common comes from the first event, an event of another user is sent complete
+        datadive.logEvent("test3");
+        datadive.setUserId("user2");
+        datadive.logEvent("test4");
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        looper.runToEndOfTasks();
+        envelope = new JSONObject(getRequestBody(runRequest(datadive))).getJSONObject("e");
+        assertEquals(envelope.getJSONObject("common").getString("user_id"), "user1");
+        sent = envelope.getJSONArray("events");
+        assertFalse(sent.getJSONObject(0).has("user_id"));
+        assertEquals(sent.getJSONObject(1).getString("user_id"), "user2");
+        assertTrue(sent.getJSONObject(1).has("os_name"));
+        events = expandEvents(envelope.toString());
+        assertEquals(events.getJSONObject(0).getString("user_id"), "user1");
+        assertEquals(events.getJSONObject(1).getString("user_id"), "user2");
+    }
+
     @Test
     public void testLogEventHasUUID() {
         ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
@@ -1052,6 +1336,567 @@ public class DatadiveClientTest extends BaseTest {
         assertEquals(dbHelper.getTotalEventCount(), 1);
     }
 
+    @Test
+    public void testConcurrentUploadsRemoveAckedPrefix() throws InterruptedException {
+        final CountDownLatch releaseFirstBatch = new CountDownLatch(1);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                try {
+                    if (getEventsFromRequest(request).getJSONObject(0).getLong("event_id") == 1) {
+                        releaseFirstBatch.await(5, SECONDS);
+                    }
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+                return new MockResponse().setBody("success");
+            }
+        });
+
+        datadive.setMaxConcurrentUploads(2);
+        datadive.setEventUploadMaxBatchSize(2);
+        datadive.setEventUploadThreshold(10);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+        for (int i = 0; i < 4; i++) {
+            datadive.logEvent(String.format("test%d", i));
+        }
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 4);
+
+        // both batches go out without waiting for the first response
+        datadive.updateServer();
+        assertEquals(datadive.inFlightBatches.size(), 2);
+        Shadows.shadowOf(datadive.httpThread.getLooper()).runToEndOfTasks();
+        for (int i = 0; i < 500 && !datadive.inFlightBatches.get(1).acked; i++) {
+            Thread.sleep(10);
+            looper.runToEndOfTasks();
+        }
+        assertTrue(datadive.inFlightBatches.get(1).acked);
+        assertEquals(server.getRequestCount(), 2);
+
+        // the second batch is acked but the first is not, so nothing is removed yet
+        assertEquals(getUnsentEventCount(), 4);
+
+        releaseFirstBatch.countDown();
+        for (int i = 0; i < 500 && !datadive.inFlightBatches.isEmpty(); i++) {
+            Thread.sleep(10);
+            looper.runToEndOfTasks();
+        }
+        assertEquals(getUnsentEventCount(), 0);
+        assertFalse(datadive.uploadingCurrently.get());
+        assertEquals(server.getRequestCount(), 2);
+    }
+
+    @Test
+    public void testConcurrentUploadsKeepAckedBatchAfterFailure() throws InterruptedException {
+        final AtomicInteger requests = new AtomicInteger(0);
+        final List<Long> uploadedIds = Collections.synchronizedList(new ArrayList<Long>());
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                requests.incrementAndGet();
+                try {
+                    JSONArray events = getEventsFromRequest(request);
+                    if (events.getJSONObject(0).getLong("event_id") == 1 && requests.get() <= 2) {
+                        return new MockResponse().setResponseCode(500);
+                    }
+                    for (int i = 0; i < events.length(); i++) {
+                        uploadedIds.add(events.getJSONObject(i).getLong("event_id"));
+                    }
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+                return new MockResponse().setBody("success");
+            }
+        });
+
+        datadive.setMaxConcurrentUploads(2);
+        datadive.setEventUploadMaxBatchSize(2);
+        datadive.setEventUploadThreshold(10);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(datadive.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        for (int i = 0; i < 4; i++) {
+            datadive.logEvent(String.format("test%d", i));
+        }
+        looper.runToEndOfTasks();
+
+        // the first batch fails and the second is acked, only the first is left to send
+        datadive.updateServer();
+        assertEquals(datadive.inFlightBatches.size(), 2);
+        for (int i = 0; i < 500 && !datadive.inFlightBatches.isEmpty(); i++) {
+            Thread.sleep(10);
+            httpLooper.runToEndOfTasks();
+            looper.runToEndOfTasks();
+        }
+        assertEquals(requests.get(), 2);
+        assertEquals(getUnsentEventCount(), 2);
+        assertEquals(uploadedIds, Arrays.asList(3L, 4L));
+
+        // the retry sends the failed batch alone
+        datadive.updateServer();
+        for (int i = 0; i < 500 && getUnsentEventCount() > 0; i++) {
+            Thread.sleep(10);
+            httpLooper.runToEndOfTasks();
+            looper.runToEndOfTasks();
+        }
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(requests.get(), 3);
+        assertEquals(uploadedIds, Arrays.asList(3L, 4L, 1L, 2L));
+    }
+
+    @Test
+    public void testConcurrentRequestTooLargeShrinksOnce() throws InterruptedException {
+        final AtomicInteger requests = new AtomicInteger(0);
+        final List<Long> uploadedIds = Collections.synchronizedList(new ArrayList<Long>());
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                if (requests.incrementAndGet() <= 2) {
+                    return new MockResponse().setResponseCode(413);
+                }
+                try {
+                    JSONArray events = getEventsFromRequest(request);
+                    for (int i = 0; i < events.length(); i++) {
+                        uploadedIds.add(events.getJSONObject(i).getLong("event_id"));
+                    }
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+                return new MockResponse().setBody("success");
+            }
+        });
+
+        datadive.setMaxConcurrentUploads(2);
+        datadive.setEventUploadMaxBatchSize(2);
+        datadive.setEventUploadThreshold(10);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(datadive.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        for (int i = 0; i < 4; i++) {
+            datadive.logEvent(String.format("test%d", i));
+        }
+        looper.runToEndOfTasks();
+
+        // both batches of 2 are rejected, the batch size is halved once to 1, so no event is
+        // dropped as too large and every event is uploaded on the retries
+        datadive.updateServer();
+        for (int i = 0; i < 500 && getUnsentEventCount() > 0; i++) {
+            Thread.sleep(10);
+            httpLooper.runToEndOfTasks();
+            looper.runToEndOfTasks();
+        }
+        assertEquals(getUnsentEventCount(), 0);
+        Collections.sort(uploadedIds);
+        assertEquals(uploadedIds, Arrays.asList(1L, 2L, 3L, 4L));
+        assertEquals(requests.get(), 6);
+    }
+
+    @Test
+    public void testAdaptiveBatchSize() throws JSONException {
+        datadive.setEventUploadMaxBatchSize(2);
+        datadive.setEventUploadThreshold(100);
+        datadive.enableAdaptiveBatchSize(1, 20, 10000);
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        String key = DatadiveClient.UPLOAD_BATCH_SIZE_KEY_PREFIX + Utils.getNetworkType(context);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        // a fast full batch grows the batch size additively
+        for (int i = 0; i < 3; i++) {
+            datadive.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        assertEquals(getEventsFromRequest(runRequest(datadive)).length(), 2);
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 1);
+        assertEquals(dbHelper.getLongValue(key).longValue(), 2 + Constants.ADAPTIVE_BATCH_SIZE_INCREMENT);
+
+        for (int i = 0; i < 15; i++) {
+            datadive.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        assertEquals(getEventsFromRequest(runRequest(datadive)).length(), 12);
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 4);
+        assertEquals(dbHelper.getLongValue(key).longValue(), 20);
+
+        // a 413 halves it
+        for (int i = 0; i < 12; i++) {
+            datadive.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        datadive.updateServer();
+        server.enqueue(new MockResponse().setResponseCode(413));
+        Shadows.shadowOf(datadive.httpThread.getLooper()).runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(dbHelper.getLongValue(key).longValue(), 10);
+    }
+
+    @Test
+    public void testUploadRetryBackoff() {
+        datadive.enableUploadRetryBackoff(1000, 60 * 1000);
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(datadive.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        datadive.logEvent("test");
+        looper.runToEndOfTasks();
+
+        // a 503 with Retry-After backs off for at least that long
+        long before = System.currentTimeMillis();
+        server.enqueue(new MockResponse().setResponseCode(503).setHeader("Retry-After", "120"));
+        datadive.updateServer();
+        httpLooper.runToEndOfTasks();
+        looper.runOneTask();
+        long nextAttemptTime = dbHelper.getLongValue(DatadiveClient.NEXT_UPLOAD_ATTEMPT_TIME_KEY);
+        assertTrue(nextAttemptTime >= before + 120 * 1000);
+        assertTrue(nextAttemptTime <= System.currentTimeMillis() + 120 * 1000);
+
+        // no uploads while backing off, however often they are triggered
+        datadive.updateServer();
+        datadive.updateServer();
+        assertTrue(datadive.inFlightBatches.isEmpty());
+        assertEquals(server.getRequestCount(), 1);
+
+        // the retry timer uploads once the backoff is over, and success clears it
+        looper.runToEndOfTasks();
+        assertEquals(datadive.inFlightBatches.size(), 1);
+        runRequest(datadive);
+        looper.runToEndOfTasks();
+        assertEquals(server.getRequestCount(), 2);
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(dbHelper.getLongValue(DatadiveClient.NEXT_UPLOAD_ATTEMPT_TIME_KEY).longValue(), 0);
+    }
+
+    @Test
+    public void testFlushJitter() {
+        // the offset is stable for a device and spread over the window
+        long offset = DatadiveClient.getPhaseOffsetMillis("device-a", 60 * 1000);
+        assertEquals(offset, DatadiveClient.getPhaseOffsetMillis("device-a", 60 * 1000));
+        assertTrue(offset >= 0 && offset < 60 * 1000);
+        assertNotEquals(offset, DatadiveClient.getPhaseOffsetMillis("device-b", 60 * 1000));
+        assertEquals(DatadiveClient.getPhaseOffsetMillis("device-a", 0), 0);
+
+        datadive.setEventUploadPeriodMillis(1000);
+        datadive.enableFlushJitter(60 * 1000);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+        long delay = 1000 + datadive.getFlushPhaseOffsetMillis();
+
+        // the periodic upload waits for the period plus this device's offset
+        datadive.logEvent("test");
+        looper.runOneTask();
+        assertEquals(getUnsentEventCount(), 1);
+        looper.getScheduler().advanceBy(delay - 1, MILLISECONDS);
+        assertTrue(datadive.inFlightBatches.isEmpty());
+        looper.getScheduler().advanceBy(1, MILLISECONDS);
+        assertEquals(datadive.inFlightBatches.size(), 1);
+    }
+
+    @Test
+    public void testRadioAwareUploads() {
+        RadioActivity.reset();
+        ConnectivityManager connectivityManager =
+            (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        Shadows.shadowOf(connectivityManager).setActiveNetworkInfo(ShadowNetworkInfo.newInstance(
+            NetworkInfo.DetailedState.CONNECTED, ConnectivityManager.TYPE_MOBILE, 0, true, true
+        ));
+
+        datadive.enableRadioAwareUploads(60 * 1000).setEventUploadThreshold(1);
+        DatadiveClient other = Datadive.getInstance("app1");
+        other.url = server.url("/").toString();
+        other.enableRadioAwareUploads(60 * 1000).setEventUploadThreshold(1);
+        other.initialize(context, apiKey);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper otherLooper = Shadows.shadowOf(other.logThread.getLooper());
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+
+        // both instances reach their threshold while the radio is idle and hold back
+        datadive.logEvent("test");
+        other.logEvent("test");
+        looper.runOneTask();
+        otherLooper.runOneTask();
+        assertTrue(datadive.inFlightBatches.isEmpty());
+        assertTrue(other.inFlightBatches.isEmpty());
+
+        // app traffic wakes the radio and both uploads go out with it
+        Datadive.notifyNetworkActivity();
+        looper.runOneTask();
+        otherLooper.runOneTask();
+        assertEquals(datadive.inFlightBatches.size(), 1);
+        assertEquals(other.inFlightBatches.size(), 1);
+
+        other.logThread.getLooper().quit();
+        other.httpThread.getLooper().quit();
+        RadioActivity.reset();
+    }
+
+    @Test
+    public void testUploadPolicy() throws InterruptedException, JSONException {
+        DatadiveClientWithTime client = (DatadiveClientWithTime) datadive;
+        client.uploadConditions = new UploadConditions(
+            false, false, false, Constants.NETWORK_TYPE_NONE
+        );
+        datadive.setUploadPolicy(UploadPolicies.standard(2, 50));
+        datadive.setEventUploadMaxBatchSize(10).setEventUploadThreshold(100);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(datadive.httpThread.getLooper());
+        looper.runToEndOfTasks();
+
+        for (int i = 0; i < 5; i++) {
+            datadive.logEvent("test" + i);
+        }
+        looper.runToEndOfTasks();
+
+        // offline, nothing is read for upload
+        datadive.uploadEvents();
+        looper.runToEndOfTasks();
+        assertTrue(datadive.inFlightBatches.isEmpty());
+        assertEquals(getUnsentEventCount(), 5);
+
+        // metered network, small batches
+        client.uploadConditions = new UploadConditions(
+            true, true, false, Constants.NETWORK_TYPE_CELLULAR
+        );
+        datadive.uploadEvents();
+        looper.runOneTask();
+        assertEquals(datadive.inFlightBatches.size(), 1);
+        server.enqueue(new MockResponse().setBody("success"));
+        httpLooper.runToEndOfTasks();
+        looper.runOneTask();
+        assertEquals(getEventsFromRequest(server.takeRequest()).length(), 2);
+        assertEquals(getUnsentEventCount(), 3);
+
+        // unmetered and charging, the backlog drains in one request
+        client.uploadConditions = new UploadConditions(
+            true, false, true, Constants.NETWORK_TYPE_WIFI
+        );
+        datadive.uploadEvents();
+        looper.runOneTask();
+        server.enqueue(new MockResponse().setBody("success"));
+        httpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        assertEquals(getEventsFromRequest(server.takeRequest()).length(), 3);
+        assertEquals(getUnsentEventCount(), 0);
+
+        datadive.setUploadPolicy(null);
+    }
+
+    @Test
+    public void testSharedHttpClient() {
+        DatadiveClient other = Datadive.getInstance("app1");
+        other.initialize(context, apiKey);
+        Shadows.shadowOf(other.logThread.getLooper()).runToEndOfTasks();
+        Shadows.shadowOf(datadive.logThread.getLooper()).runToEndOfTasks();
+
+        assertNotNull(datadive.httpClient);
+        assertSame(datadive.httpClient, other.httpClient);
+        assertSame(DatadiveClient.getSharedHttpClient(), other.httpClient);
+
+        other.logThread.getLooper().quit();
+        other.httpThread.getLooper().quit();
+    }
+
+    @Test
+    public void testUploadCoalescing() throws JSONException {
+        UploadCoalescer.reset();
+        final String otherApiKey = "1cc2c1978ebab0f6451112a8f5df4f4f";
+        final Map<String, JSONArray> collected = new HashMap<String, JSONArray>();
+        // collector stand-in: splits the coalesced request by API key and answers per payload
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                JSONArray results = new JSONArray();
+                try {
+                    JSONArray payloads = new JSONArray(getRequestBody(request));
+                    for (int i = 0; i < payloads.length(); i++) {
+                        JSONObject payload = payloads.getJSONObject(i);
+                        collected.put(payload.getString("client"), payload.getJSONArray("e"));
+                        results.put("success");
+                    }
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+                return new MockResponse().setBody(results.toString());
+            }
+        });
+
+        datadive.enableUploadCoalescing(1000).setEventUploadThreshold(1);
+        DatadiveClient other = Datadive.getInstance("app1");
+        other.url = server.url("/").toString();
+        other.enableUploadCoalescing(1000).setEventUploadThreshold(1);
+        other.initialize(context, otherApiKey);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper otherLooper = Shadows.shadowOf(other.logThread.getLooper());
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+
+        datadive.logEvent("test1");
+        other.logEvent("test2");
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+        assertEquals(datadive.inFlightBatches.size(), 1);
+        assertEquals(other.inFlightBatches.size(), 1);
+        assertEquals(server.getRequestCount(), 0);
+
+        // the first batch's window closes and both batches go out in one request
+        Shadows.shadowOf(datadive.httpThread.getLooper()).runToEndOfTasks();
+        looper.runToEndOfTasks(); // each instance handles its result
+        otherLooper.runToEndOfTasks();
+        looper.runToEndOfTasks(); // and removes its uploaded events
+        otherLooper.runToEndOfTasks();
+        assertEquals(server.getRequestCount(), 1);
+        assertEquals(collected.size(), 2);
+        assertEquals(collected.get(apiKey).getJSONObject(0).optString("event_type"), "test1");
+        assertEquals(collected.get(otherApiKey).getJSONObject(0).optString("event_type"), "test2");
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(other.dbHelper.getEventCount(), 0);
+        assertTrue(other.inFlightBatches.isEmpty());
+
+        other.logThread.getLooper().quit();
+        other.httpThread.getLooper().quit();
+        UploadCoalescer.reset();
+    }
+
+    @Test
+    public void testUploadCoalescingSingleSuccess() {
+        UploadCoalescer.reset();
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setBody("success");
+            }
+        });
+
+        datadive.enableUploadCoalescing(1000).setEventUploadThreshold(1);
+        DatadiveClient other = Datadive.getInstance("app2");
+        other.url = server.url("/").toString();
+        other.enableUploadCoalescing(1000).setEventUploadThreshold(1);
+        other.initialize(context, "1cc2c1978ebab0f6451112a8f5df4f4f");
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper otherLooper = Shadows.shadowOf(other.logThread.getLooper());
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+
+        datadive.logEvent("test1");
+        other.logEvent("test2");
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+
+        // a single success applies to every payload, nothing is sent again
+        Shadows.shadowOf(datadive.httpThread.getLooper()).runToEndOfTasks();
+        Shadows.shadowOf(other.httpThread.getLooper()).runToEndOfTasks();
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+        assertEquals(server.getRequestCount(), 1);
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(other.dbHelper.getEventCount(), 0);
+
+        other.logThread.getLooper().quit();
+        other.httpThread.getLooper().quit();
+        UploadCoalescer.reset();
+    }
+
+    @Test
+    public void testUploadCoalescingSplitsRequestTooLarge() throws JSONException {
+        UploadCoalescer.reset();
+        final String otherApiKey = "1cc2c1978ebab0f6451112a8f5df4f4f";
+        final Map<String, JSONArray> collected = new HashMap<String, JSONArray>();
+        // rejects coalesced requests as too large, accepts the batches sent on their own
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                if (getRequestBody(request).startsWith("[")) {
+                    return new MockResponse().setResponseCode(413);
+                }
+                try {
+                    collected.put(parseRequest(getRequestBody(request)).get("client"),
+                            getEventsFromRequest(request));
+                } catch (JSONException e) {
+                    fail(e.toString());
+                }
+                return new MockResponse().setBody("success");
+            }
+        });
+
+        datadive.enableUploadCoalescing(1000).setEventUploadThreshold(1);
+        DatadiveClient other = Datadive.getInstance("app2");
+        other.url = server.url("/").toString();
+        other.enableUploadCoalescing(1000).setEventUploadThreshold(1);
+        other.initialize(context, otherApiKey);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        ShadowLooper otherLooper = Shadows.shadowOf(other.logThread.getLooper());
+        ShadowLooper httpLooper = Shadows.shadowOf(datadive.httpThread.getLooper());
+        ShadowLooper otherHttpLooper = Shadows.shadowOf(other.httpThread.getLooper());
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+
+        datadive.logEvent("test1");
+        other.logEvent("test2");
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+
+        // the coalesced request is rejected and each batch is sent again by its instance,
+        // neither batch is shrunk or dropped because of the other's payload
+        httpLooper.runToEndOfTasks();
+        otherHttpLooper.runToEndOfTasks();
+        looper.runToEndOfTasks();
+        otherLooper.runToEndOfTasks();
+        assertEquals(server.getRequestCount(), 3);
+        assertEquals(collected.size(), 2);
+        assertEquals(collected.get(apiKey).getJSONObject(0).optString("event_type"), "test1");
+        assertEquals(collected.get(otherApiKey).getJSONObject(0).optString("event_type"), "test2");
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(other.dbHelper.getEventCount(), 0);
+
+        other.logThread.getLooper().quit();
+        other.httpThread.getLooper().quit();
+        UploadCoalescer.reset();
+    }
+
+    @Test
+    public void testEventRingBuffer() throws JSONException {
+        datadive.enableEventRingBuffer(4);
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+
+        // events and other calls go through the buffer in order, one message drains them all
+        datadive.logEvent("test1");
+        datadive.setUserId("user2");
+        datadive.logEvent("test2");
+        looper.runOneTask();
+        JSONArray events = getUnsentEvents(2);
+        assertEquals(events.length(), 2);
+        assertEquals(events.getJSONObject(0).getString("event_type"), "test1");
+        assertFalse(events.getJSONObject(0).optString("user_id").equals("user2"));
+        assertEquals(events.getJSONObject(1).getString("event_type"), "test2");
+        assertEquals(events.getJSONObject(1).getString("user_id"), "user2");
+
+        // more events than slots overflow to the handler without reordering
+        for (int i = 3; i <= 8; i++) {
+            datadive.logEvent("test" + i);
+            if (i == 6) {
+                datadive.setUserId("user3");
+            }
+        }
+        looper.runToEndOfTasks();
+        datadive.logEvent("test9");
+        looper.runToEndOfTasks();
+        events = getUnsentEvents(9);
+        assertEquals(events.length(), 9);
+        for (int i = 0; i < 9; i++) {
+            assertEquals(events.getJSONObject(i).getString("event_type"), "test" + (i + 1));
+            assertEquals(events.getJSONObject(i).getString("user_id").equals("user3"), i >= 6);
+        }
+    }
+
     @Test
     public void testBackoffRemoveIdentify() {
         long [] timestamps = {1, 1, 2, 3, 4, 5};
@@ -1189,6 +2034,99 @@ public class DatadiveClientTest extends BaseTest {
         }
     }
 
+    @Test
+    public void testSequenceNumberBlockAllocation() {
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+
+        datadive.setSequenceNumberBlockSize(100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(datadive.getNextSequenceNumber(), i+1);
+            assertEquals(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), Long.valueOf(100));
+        }
+        assertEquals(datadive.getNextSequenceNumber(), 101);
+        assertEquals(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), Long.valueOf(200));
+
+        // a restart skips ahead to the next block
+        DatadiveClient relaunched = new DatadiveClient();
+        try {
+            relaunched.initialize(context, apiKey);
+            Shadows.shadowOf(relaunched.logThread.getLooper()).runToEndOfTasks();
+            relaunched.setSequenceNumberBlockSize(100);
+            assertEquals(relaunched.getNextSequenceNumber(), 201);
+            assertEquals(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), Long.valueOf(300));
+        } finally {
+            relaunched.logThread.getLooper().quit();
+            relaunched.httpThread.getLooper().quit();
+        }
+    }
+
+    @Test
+    public void testWriteBehindMetadata() {
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+
+        datadive.enableWriteBehindMetadata(60 * 1000);
+        assertEquals(datadive.getNextSequenceNumber(), 1);
+        assertEquals(datadive.getNextSequenceNumber(), 2);
+        datadive.setLastEventId(2);
+        assertNull(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY));
+        assertNull(dbHelper.getLongValue(DatadiveClient.LAST_EVENT_ID_KEY));
+
+        datadive.persistMetadata();
+        assertEquals(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), Long.valueOf(2));
+        assertEquals(dbHelper.getLongValue(DatadiveClient.LAST_EVENT_ID_KEY), Long.valueOf(2));
+
+        // leaving the foreground writes anything still held in memory
+        assertEquals(datadive.getNextSequenceNumber(), 3);
+        datadive.onExitForeground(1000);
+        looper.runToEndOfTasks();
+        assertEquals(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), Long.valueOf(3));
+
+        // switching back writes through again
+        datadive.disableWriteBehindMetadata();
+        looper.runToEndOfTasks();
+        assertEquals(datadive.getNextSequenceNumber(), 4);
+        assertEquals(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), Long.valueOf(4));
+    }
+
+    @Test
+    public void testWriteBehindMetadataRecoveryAfterQueueDrained() throws JSONException {
+        ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+        DatabaseHelper dbHelper = DatabaseHelper.getDatabaseHelper(context);
+
+        datadive.enableWriteBehindMetadata(60 * 1000);
+        for (int i = 0; i < 3; i++) {
+            datadive.logEvent("test");
+        }
+        looper.runToEndOfTasks();
+        assertNull(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY));
+
+        // the upload drains the queue, the metadata is written before the rows are removed
+        datadive.updateServer();
+        assertEquals(getEventsFromRequest(runRequest(datadive)).length(), 3);
+        looper.runToEndOfTasks();
+        assertEquals(getUnsentEventCount(), 0);
+        assertEquals(dbHelper.getLongValue(DatadiveClient.SEQUENCE_NUMBER_KEY), Long.valueOf(3));
+
+        // the process dies before the periodic write, recovery finds no queued rows and falls
+        // back to the stored values, which must not reuse the uploaded sequence numbers
+        datadive.logThread.getLooper().quit();
+        datadive.httpThread.getLooper().quit();
+        Datadive.instances.clear();
+        datadive = new DatadiveClientWithTime(clock);
+        datadive.url = server.url("/").toString();
+        datadive.initialize(context, apiKey);
+        looper = Shadows.shadowOf(datadive.logThread.getLooper());
+        looper.runToEndOfTasks();
+        assertEquals(datadive.sequenceNumber, 3);
+        assertEquals(datadive.lastEventId, 3);
+        assertEquals(datadive.getNextSequenceNumber(), 4);
+    }
+
     @Test
     public void testSetOffline() throws JSONException {
         ShadowLooper looper = Shadows.shadowOf(datadive.logThread.getLooper());
@@ -252,6 +252,21 @@ public class DeviceInfoTest extends BaseTest {
         assertNull(recent);
     }
 
+    @Test
+    public void testLocationSnapshot() {
+        DeviceInfo deviceInfo = new DeviceInfo(context, true);
+        assertTrue(deviceInfo.isLocationSnapshotStale(Long.MAX_VALUE));
+
+        deviceInfo.refreshLocationSnapshot();
+        assertNull(deviceInfo.getLocationSnapshot());
+        assertFalse(deviceInfo.isLocationSnapshotStale(Long.MAX_VALUE));
+        assertTrue(deviceInfo.isLocationSnapshotStale(0));
+
+        // changing location listening drops the snapshot
+        deviceInfo.setLocationListening(false);
+        assertTrue(deviceInfo.isLocationSnapshotStale(Long.MAX_VALUE));
+    }
+
     @Test
     public void testUseAdvertisingIdAsDeviceId() {
         PowerMockito.mockStatic(AdvertisingIdClient.class);
@@ -0,0 +1,129 @@
+package ai.datadive.api;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+
+/**
+ * Caller-side cost of logEventAsync with and without the event ring buffer, measured in
+ * nanoseconds and bytes allocated per event on the calling thread, with warmup iterations first
+ * like JMH. Every event carries all five property objects, so their clones are included. Each
+ * iteration logs fewer events than the ring holds, and the log thread drains between
+ * iterations, outside the measurement. Under Robolectric Handler.post goes through its
+ * scheduler instead of a MessageQueue, so absolute numbers differ from a device.
+ *
+ * Skipped unless run with -Ddatadive.benchmark=true, e.g.
+ * ./gradlew testDebugUnitTest --tests '*EventRingBufferBenchmark' -Ddatadive.benchmark=true
+ */
+@RunWith(AndroidJUnit4.class)
+@Config(manifest = Config.NONE)
+public class EventRingBufferBenchmark extends BaseTest {
+    private static final int WARMUP_ITERATIONS = 20;
+    private static final int MEASUREMENT_ITERATIONS = 50;
+    private static final int EVENTS_PER_ITERATION = 1000;
+    private static final int CAPACITY = 1024;
+
+    private JSONObject eventProperties;
+    private JSONObject apiProperties;
+    private JSONObject userProperties;
+    private JSONObject groups;
+    private JSONObject groupProperties;
+
+    @Before
+    public void setUp() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("datadive.benchmark"));
+        super.setUp(false);
+        eventProperties = new JSONObject().put("screen", "home").put("index", 3);
+        apiProperties = new JSONObject().put("special", "benchmark");
+        userProperties = new JSONObject().put("$set", new JSONObject().put("plan", "pro"));
+        groups = new JSONObject().put("company", "datadive");
+        groupProperties = new JSONObject().put("size", 42);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void benchmarkLogEventAsync() throws JSONException {
+        report("handler", run(datadive));
+
+        DatadiveClient ringClient = new DatadiveClient("app1").enableEventRingBuffer(CAPACITY);
+        try {
+            report("ring buffer", run(ringClient));
+        } finally {
+            ringClient.logThread.getLooper().quit();
+            ringClient.httpThread.getLooper().quit();
+        }
+    }
+
+    private double[] run(DatadiveClient client) {
+        client.initialize(context, apiKey);
+        // the log thread drops opted out events right away, draining costs little
+        client.setOptOut(true);
+        drain(client);
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(client);
+        }
+        double nanos = 0;
+        double bytes = 0;
+        for (int i = 0; i < MEASUREMENT_ITERATIONS; i++) {
+            double[] result = iteration(client);
+            nanos += result[0];
+            bytes += result[1];
+        }
+        return new double[] {nanos / MEASUREMENT_ITERATIONS, bytes / MEASUREMENT_ITERATIONS};
+    }
+
+    // ns/op and B/op on the calling thread
+    private double[] iteration(DatadiveClient client) {
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < EVENTS_PER_ITERATION; i++) {
+            client.logEventAsync("event", eventProperties, apiProperties, userProperties, groups,
+                    groupProperties, i, false);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - allocatedBefore;
+        drain(client);
+        return new double[] {
+            (double) elapsed / EVENTS_PER_ITERATION,
+            allocatedBefore < 0 ? Double.NaN : (double) allocated / EVENTS_PER_ITERATION
+        };
+    }
+
+    private static void drain(DatadiveClient client) {
+        Shadows.shadowOf(client.logThread.getLooper()).runToEndOfTasks();
+    }
+
+    private static void report(String name, double[] result) {
+        System.out.println(String.format(Locale.US,
+            "EventRingBufferBenchmark.%-12s %10.1f ns/op %10.1f B/op", name, result[0], result[1]));
+    }
+
+    // HotSpot only, looked up reflectively since the unit tests compile against android.jar
+    private static long allocatedBytes() {
+        try {
+            Object threadBean = Class.forName("java.lang.management.ManagementFactory")
+                .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadBean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
@@ -15,6 +15,8 @@ import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
@@ -69,6 +71,25 @@ public class TrackingOptionsTest extends BaseTest {
         assertTrue(Utils.compareJSONObjects(options.getApiPropertiesTrackingOptions(), expectedOptions));
     }
 
+    @Test
+    public void testApiPropertiesTrackingOptionsShared() throws JSONException {
+        TrackingOptions options = new TrackingOptions().disableCity();
+        JSONObject apiProperties = options.getApiPropertiesTrackingOptions();
+        assertSame(options.getApiPropertiesTrackingOptions(), apiProperties);
+
+        // a change computes it again
+        options.disableIpAddress();
+        assertNotSame(options.getApiPropertiesTrackingOptions(), apiProperties);
+        assertEquals(options.getApiPropertiesTrackingOptions().length(), 2);
+        assertEquals(Integer.bitCount(options.disabledMask), 2);
+
+        // disabling a field twice leaves both unchanged
+        apiProperties = options.getApiPropertiesTrackingOptions();
+        options.disableCity();
+        assertSame(options.getApiPropertiesTrackingOptions(), apiProperties);
+        assertEquals(Integer.bitCount(options.disabledMask), 2);
+    }
+
     @Test
     public void testGetCoppaControlTrackingOptions() {
         TrackingOptions options = TrackingOptions.forCoppaControl();